@@ -0,0 +1,182 @@
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the ciphers of the upstream server.
+ * <p>
+ * The client only uses key % 8 and key % 26 to decipher, so two keys that are
+ * equal modulo 104 give ciphers that decipher the same way. Entries are
+ * therefore kept by user name and key % 104, which leaves at most 104 of them
+ * for each user.
+ * <p>
+ * The least recently used entry is evicted when the cache is full, and entries
+ * older than the time to live are loaded again. Requests missing on the same
+ * entry at the same time share one upstream call.
+ */
+public class CipherCache {
+
+    /**
+     * Loads a cipher from the upstream server.
+     */
+    public interface Loader {
+
+        /**
+         * @param uid User name
+         * @param key Key
+         * @return The pending cipher
+         */
+        CompletableFuture<String> load(String uid, int key);
+    }
+
+    private static final int KEY_CLASSES = 104;
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity Maximum number of ciphers kept, 0 turns the cache off
+     * @param ttlMillis How long a cipher is kept, in milliseconds
+     */
+    public CipherCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1000000L;
+        //Access order, so the eldest entry is the least recently used one
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets a cipher from the cache, or from the loader if it is not cached.
+     *
+     * @param uid User name
+     * @param key Key of the user
+     * @param loader Upstream call used on a miss
+     * @return The pending cipher, already complete on a hit
+     */
+    public CompletableFuture<String> get(String uid, int key, Loader loader) {
+        if (capacity <= 0) {
+            return loader.load(uid, key);
+        }
+        String cacheKey = uid + '\u0000' + Math.floorMod(key, KEY_CLASSES);
+        String cipher = lookup(cacheKey);
+        if (cipher != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cipher);
+        }
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = loading.putIfAbsent(cacheKey, mine);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        //Another request may have stored it just before we registered
+        cipher = lookup(cacheKey);
+        if (cipher != null) {
+            hits.incrementAndGet();
+            loading.remove(cacheKey, mine);
+            mine.complete(cipher);
+            return mine;
+        }
+        misses.incrementAndGet();
+        loader.load(uid, key).whenComplete((loaded, error) -> {
+            if (error == null) {
+                store(cacheKey, loaded);
+            }
+            loading.remove(cacheKey, mine);
+            if (error == null) {
+                mine.complete(loaded);
+            } else {
+                mine.completeExceptionally(error);
+            }
+        });
+        return mine;
+    }
+
+    private synchronized String lookup(String cacheKey) {
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.loaded > ttlNanos) {
+            entries.remove(cacheKey);
+            evictions.incrementAndGet();
+            return null;
+        }
+        return entry.cipher;
+    }
+
+    private synchronized void store(String cacheKey, String cipher) {
+        entries.put(cacheKey, new Entry(cipher, System.nanoTime()));
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes every cipher.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of ciphers kept
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Number of requests answered from memory
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of requests that called the upstream server
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of requests that waited for another thread's upstream call
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return Number of ciphers dropped because of size or age
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static final class Entry {
+
+        private final String cipher;
+        private final long loaded;
+
+        Entry(String cipher, long loaded) {
+            this.cipher = cipher;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -32,13 +33,16 @@ public class ClientThread extends Thread {
     @Override
     public void run() {
         try {
-            user.setPrimes(in.readUTF());
+            //The greeting is read as bytes, the numbers in it are ASCII
+            byte[] greeting = new byte[in.readUnsignedShort()];
+            in.readFully(greeting);
+            user.setGreeting(WireProtocol.parseGreeting(greeting, greeting.length));
         } catch (IOException e) {
         }
         int numberOfDecodes = 0;
         while (numberOfDecodes < 1) {
             try {
-                queue.add(in.readUTF());
+                queue.add(user.isBinary() ? readDeciphered() : in.readUTF());
                 numberOfDecodes++;
             } catch (IOException e) {
                 System.out.println("Error in reading the output");
@@ -47,6 +51,25 @@ public class ClientThread extends Thread {
         }
     }
 
+    /**
+     * Reads a cipher sent as frames and deciphers it while it arrives, so the
+     * cipher itself is never held whole.
+     * @return The deciphered text
+     * @throws IOException If the stream fails, a frame is bad or the cipher
+     * ends inside a chunk of 8
+     */
+    private String readDeciphered() throws IOException {
+        Reader cipher = new DecipherReader(new InputStreamReader(new WireProtocol.CipherInputStream(in),
+                StandardCharsets.UTF_8), user.getKey());
+        StringBuilder text = new StringBuilder();
+        char[] chunk = new char[8192];
+        int read;
+        while ((read = cipher.read(chunk)) >= 0) {
+            text.append(chunk, 0, read);
+        }
+        return text.toString();
+    }
+
     /**
      * Terminates this
      */
@@ -62,6 +85,7 @@ public class ClientThread extends Thread {
 
     /**
      * Gets next cipher while trough a queue that simply wait for the server to respond.
+     * A cipher sent as frames is already deciphered.
      * @return
      */
     public String getNextCipher() {
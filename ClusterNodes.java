@@ -0,0 +1,171 @@
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.LocateRegistry;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The nodes of a cluster of servers. Every node hands out its own IDs: node
+ * n of N only gives IDs with ID % N == n (see {@link SessionStore}), so the
+ * owner of a user is known from its ID alone and the nodes never agree on
+ * anything at run time.
+ * <p>
+ * A call about a user of another node is forwarded over RMI to the owner.
+ * The stubs of the other nodes are looked up the first time they are needed
+ * and looked up again when a node can not be reached, so a restarted node is
+ * found again.
+ */
+public class ClusterNodes {
+
+    /**
+     * A call made on the node owning a user.
+     *
+     * @param <T> Result of the call
+     */
+    public interface RemoteCall<T> {
+
+        /**
+         * Makes the call.
+         *
+         * @param owner Node owning the user
+         * @return The result
+         * @throws RemoteException If the call fails
+         */
+        T call(ServerInterface owner) throws RemoteException;
+    }
+
+    private final int node;
+    private final String[] hosts;
+    private final int[] ports;
+    private final AtomicReferenceArray<ServerInterface> stubs;
+    private final LongAdder forwarded = new LongAdder();
+
+    /**
+     * Creates the cluster.
+     *
+     * @param node Index of this node in the addresses
+     * @param addresses host:port of the RMI registry of every node, the same
+     * list in the same order on all of them
+     */
+    public ClusterNodes(int node, String[] addresses) {
+        if (node < 0 || node >= addresses.length) {
+            throw new IllegalArgumentException("Node " + node + " is not one of the " + addresses.length
+                    + " nodes");
+        }
+        this.node = node;
+        hosts = new String[addresses.length];
+        ports = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = addresses[i].trim();
+            int colon = address.lastIndexOf(':');
+            hosts[i] = colon < 0 ? address : address.substring(0, colon);
+            ports[i] = colon < 0 ? 1099 : Integer.parseInt(address.substring(colon + 1));
+        }
+        stubs = new AtomicReferenceArray<>(addresses.length);
+    }
+
+    /**
+     * Gets the node owning an ID.
+     *
+     * @param ID ID of a user
+     * @param nodes Number of nodes
+     * @return Index of the owner
+     */
+    public static int ownerOf(int ID, int nodes) {
+        //A negative ID is never given, but a client may still send one
+        return Math.floorMod(ID, nodes);
+    }
+
+    /**
+     * @return Index of this node
+     */
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * @return Number of nodes
+     */
+    public int size() {
+        return hosts.length;
+    }
+
+    /**
+     * @return Port of the RMI registry of this node
+     */
+    public int getRegistryPort() {
+        return ports[node];
+    }
+
+    /**
+     * @param ID ID of a user
+     * @return True if this node owns the user
+     */
+    public boolean isLocal(int ID) {
+        return ownerOf(ID, hosts.length) == node;
+    }
+
+    /**
+     * @return Calls sent to other nodes
+     */
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Makes a call on the node owning a user.
+     *
+     * @param <T> Result of the call
+     * @param ID ID of the user
+     * @param call The call
+     * @return The result
+     * @throws RemoteException If the owner can not be reached or the call
+     * fails there
+     */
+    public <T> T forward(int ID, RemoteCall<T> call) throws RemoteException {
+        int owner = ownerOf(ID, hosts.length);
+        forwarded.increment();
+        try {
+            return call.call(stub(owner));
+        } catch (RemoteException e) {
+            if (!isUnreachable(e)) {
+                throw e;
+            }
+        }
+        //The call did not get to the node, which may have been restarted
+        stubs.set(owner, null);
+        return call.call(stub(owner));
+    }
+
+    /**
+     * Tells a node that can not be reached, or no longer exports the stub,
+     * from one that answered with an error of its own. In the first case the
+     * call never ran, so it is safe to make it again.
+     *
+     * @param e Exception of a call
+     * @return True if the stub should be looked up again
+     */
+    private static boolean isUnreachable(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException
+                || e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+
+    private ServerInterface stub(int owner) throws RemoteException {
+        ServerInterface stub = stubs.get(owner);
+        if (stub == null) {
+            try {
+                stub = (ServerInterface) LocateRegistry.getRegistry(hosts[owner], ports[owner])
+                        .lookup(" MyServer ");
+            } catch (NotBoundException e) {
+                throw new RemoteException("Node " + owner + " is not bound", e);
+            }
+            stubs.set(owner, stub);
+        }
+        return stub;
+    }
+}
@@ -0,0 +1,110 @@
+
+/**
+ * All the rounds of deciphering with one key, composed into a single
+ * substitution table and a single chunk rotation.
+ * <p>
+ * Substracting from every letter does not depend on the position of the
+ * letter, so it commutes with the shifting of the chunks. Any number of rounds
+ * is then the same as substracting once and rotating once, which lets
+ * {@link Decipher} do every round in one pass.
+ * <p>
+ * A key only matters through key % 8 and key % 26, that is through key % 104.
+ * With the rounds, all that is left is the amount substracted and the
+ * rotation, so there are 26 * 8 compiled keys whatever the number of rounds.
+ * They are built once and shared.
+ */
+public final class CompiledKey {
+
+    /**
+     * Number of different keys, the least common multiple of 8 and 26.
+     */
+    public static final int KEY_CLASSES = 104;
+
+    //By subtraction * 8 + rotation
+    private static final CompiledKey[] KEYS = new CompiledKey[26 * 8];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = new CompiledKey(i / 8, i % 8);
+        }
+    }
+
+    private final byte[] bytes = new byte[256];
+    private final char[] ascii = new char[128];
+    private final int subtraction;
+    private final int rotation;
+
+    private CompiledKey(int subtraction, int rotation) {
+        for (int i = 0; i < 128; i++) {
+            ascii[i] = substChar((char) i, subtraction);
+            bytes[i] = (byte) ascii[i];
+        }
+        for (int i = 128; i < 256; i++) {
+            bytes[i] = (byte) i;
+        }
+        this.subtraction = subtraction;
+        this.rotation = rotation;
+    }
+
+    //Same as MyClient.substChar
+    private static char substChar(char character, int substAmount) {
+        if (character < 'A' || character > 'Z') {
+            return character;
+        }
+        if (character - substAmount < 'A') {
+            character += 26;
+        }
+        return (char) (character - substAmount);
+    }
+
+    /**
+     * Gets the compiled form of a key.
+     *
+     * @param key Non negative key
+     * @param rounds Number of rounds the cipher was made with, at least 1
+     * @return The compiled key
+     */
+    public static CompiledKey of(int key, int rounds) {
+        if (key < 0 || rounds < 1) {
+            throw new IllegalArgumentException("Key must not be negative and rounds must be at least 1");
+        }
+        //Every round substracts key % 26 again and rotates by key % 8 again
+        int subtraction = key % 26 * (rounds % 26) % 26;
+        int rotation = key % 8 * (rounds % 8) % 8;
+        return KEYS[subtraction * 8 + rotation];
+    }
+
+    /**
+     * Deciphers one character.
+     *
+     * @param character Character to decipher
+     * @return The deciphered character
+     */
+    public char map(char character) {
+        return character < 128 ? ascii[character] : character;
+    }
+
+    /**
+     * Deciphers one single byte encoded character.
+     *
+     * @param character Character to decipher
+     * @return The deciphered character
+     */
+    public byte map(byte character) {
+        return bytes[character & 0xFF];
+    }
+
+    /**
+     * @return Amount substracted from every letter, between 0 and 25
+     */
+    public int getSubtraction() {
+        return subtraction;
+    }
+
+    /**
+     * @return Amount every chunk of 8 is shifted to the left, between 0 and 7
+     */
+    public int getRotation() {
+        return rotation;
+    }
+}
@@ -0,0 +1,315 @@
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Deciphers messages in place, in a buffer given by the caller, without
+ * allocating anything. The result is the same as
+ * {@link MyClient#resolveCipher(String, int)}: two rounds of substracting
+ * key % 26 from every letter and shifting every chunk of 8 by key % 8. The
+ * rounds are composed by a {@link CompiledKey}, so the message is only read
+ * once whatever the number of rounds.
+ * <p>
+ * Like the String version, a message whose length is not a multiple of 8
+ * deciphers to nothing, so the methods return the length of the result, which
+ * is either the length of the message or 0.
+ * <p>
+ * The byte versions are for single byte encodings such as ASCII, where every
+ * character is one byte. Byte arrays are deciphered by {@link VectorDecipher}
+ * when the jdk.incubator.vector module is there, by a scalar loop otherwise.
+ */
+public final class Decipher {
+
+    /**
+     * Number of rounds the ciphers are made with.
+     */
+    public static final int ROUNDS = 2;
+
+    /**
+     * Deciphers single byte encoded messages in place, see
+     * {@link #resolve(byte[], int, int, CompiledKey)}.
+     */
+    interface ByteEngine {
+
+        int resolve(byte[] buffer, int offset, int length, CompiledKey key);
+    }
+
+    private static final ByteEngine BYTES = loadByteEngine();
+
+    private Decipher() {
+    }
+
+    /**
+     * Deciphers a message in place.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Non negative key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(char[] buffer, int offset, int length, int key) {
+        return resolve(buffer, offset, length, CompiledKey.of(key, ROUNDS));
+    }
+
+    /**
+     * Deciphers a message in place, doing all the rounds of the compiled key
+     * in one pass.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(char[] buffer, int offset, int length, CompiledKey key) {
+        if (length % 8 != 0 || length < 8) {
+            return 0;
+        }
+        //The character at position j of a chunk ends up at position (j - rotation) & 7
+        int back = 8 - key.getRotation();
+        for (int i = offset; i < offset + length; i += 8) {
+            char c0 = buffer[i], c1 = buffer[i + 1], c2 = buffer[i + 2], c3 = buffer[i + 3];
+            char c4 = buffer[i + 4], c5 = buffer[i + 5], c6 = buffer[i + 6], c7 = buffer[i + 7];
+            buffer[i + (back & 7)] = key.map(c0);
+            buffer[i + ((back + 1) & 7)] = key.map(c1);
+            buffer[i + ((back + 2) & 7)] = key.map(c2);
+            buffer[i + ((back + 3) & 7)] = key.map(c3);
+            buffer[i + ((back + 4) & 7)] = key.map(c4);
+            buffer[i + ((back + 5) & 7)] = key.map(c5);
+            buffer[i + ((back + 6) & 7)] = key.map(c6);
+            buffer[i + ((back + 7) & 7)] = key.map(c7);
+        }
+        return length;
+    }
+
+    /**
+     * Deciphers a single byte encoded message in place.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Non negative key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(byte[] buffer, int offset, int length, int key) {
+        return resolve(buffer, offset, length, CompiledKey.of(key, ROUNDS));
+    }
+
+    /**
+     * Deciphers a single byte encoded message in place, doing all the rounds
+     * of the compiled key in one pass.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(byte[] buffer, int offset, int length, CompiledKey key) {
+        return BYTES.resolve(buffer, offset, length, key);
+    }
+
+    /**
+     * @return True if byte arrays are deciphered with vector instructions
+     */
+    public static boolean isVectorized() {
+        return !(BYTES instanceof ScalarEngine);
+    }
+
+    /**
+     * Picks the vector engine if it can be loaded. VectorDecipher is compiled
+     * on its own, so it is only looked up by name, and it can not be linked
+     * when the JVM was started without the jdk.incubator.vector module.
+     */
+    private static ByteEngine loadByteEngine() {
+        try {
+            return (ByteEngine) Class.forName("VectorDecipher").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return new ScalarEngine();
+        }
+    }
+
+    private static final class ScalarEngine implements ByteEngine {
+
+        @Override
+        public int resolve(byte[] buffer, int offset, int length, CompiledKey key) {
+            return resolveScalar(buffer, offset, length, key);
+        }
+    }
+
+    /**
+     * Deciphers a single byte encoded message in place one chunk at a time,
+     * without vector instructions.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    static int resolveScalar(byte[] buffer, int offset, int length, CompiledKey key) {
+        if (length % 8 != 0 || length < 8) {
+            return 0;
+        }
+        int back = 8 - key.getRotation();
+        for (int i = offset; i < offset + length; i += 8) {
+            byte c0 = buffer[i], c1 = buffer[i + 1], c2 = buffer[i + 2], c3 = buffer[i + 3];
+            byte c4 = buffer[i + 4], c5 = buffer[i + 5], c6 = buffer[i + 6], c7 = buffer[i + 7];
+            buffer[i + (back & 7)] = key.map(c0);
+            buffer[i + ((back + 1) & 7)] = key.map(c1);
+            buffer[i + ((back + 2) & 7)] = key.map(c2);
+            buffer[i + ((back + 3) & 7)] = key.map(c3);
+            buffer[i + ((back + 4) & 7)] = key.map(c4);
+            buffer[i + ((back + 5) & 7)] = key.map(c5);
+            buffer[i + ((back + 6) & 7)] = key.map(c6);
+            buffer[i + ((back + 7) & 7)] = key.map(c7);
+        }
+        return length;
+    }
+
+    /**
+     * Deciphers the remaining bytes of a buffer in place. Heap buffers are
+     * worked on through their array, direct ones byte by byte.
+     *
+     * @param buffer Buffer, the message is between position and limit
+     * @param key Non negative key
+     * @return Length of the deciphered message, 0 or the remaining bytes
+     */
+    public static int resolve(ByteBuffer buffer, int key) {
+        return resolve(buffer, CompiledKey.of(key, ROUNDS));
+    }
+
+    /**
+     * Deciphers the remaining bytes of a buffer in place with a compiled key.
+     *
+     * @param buffer Buffer, the message is between position and limit
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or the remaining bytes
+     */
+    public static int resolve(ByteBuffer buffer, CompiledKey key) {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            return resolve(buffer.array(), buffer.arrayOffset() + buffer.position(), length, key);
+        }
+        if (length % 8 != 0 || length < 8) {
+            return 0;
+        }
+        int start = buffer.position();
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int rotation = key.getRotation();
+        for (int i = start; i < start + length; i += 8) {
+            //Eight bytes fit in a long, so the chunk is read once before it is written back rotated
+            long chunk = buffer.getLong(i);
+            for (int j = 0; j < 8; j++) {
+                int from = (j + rotation) & 7;
+                int bit = bigEndian ? 56 - 8 * from : 8 * from;
+                buffer.put(i + j, key.map((byte) (chunk >>> bit)));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Substracts an amount from every letter from A to Z, wrapping around.
+     * Other characters are left as they are.
+     *
+     * @param buffer Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @param amount Amount between 0 and 25
+     */
+    public static void substitute(char[] buffer, int offset, int length, int amount) {
+        for (int i = offset; i < offset + length; i++) {
+            char character = buffer[i];
+            if (character >= 'A' && character <= 'Z') {
+                int shifted = character - amount;
+                buffer[i] = (char) (shifted < 'A' ? shifted + 26 : shifted);
+            }
+        }
+    }
+
+    /**
+     * Substracts an amount from every byte from A to Z, wrapping around.
+     *
+     * @param buffer Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @param amount Amount between 0 and 25
+     */
+    public static void substitute(byte[] buffer, int offset, int length, int amount) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] = substitute(buffer[i], amount);
+        }
+    }
+
+    private static byte substitute(byte character, int amount) {
+        if (character >= 'A' && character <= 'Z') {
+            int shifted = character - amount;
+            return (byte) (shifted < 'A' ? shifted + 26 : shifted);
+        }
+        return character;
+    }
+
+    /**
+     * Shifts every chunk of 8 to the left by an amount, like
+     * {@link MyClient#shiftChunk(String, int)}.
+     *
+     * @param buffer Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text, a multiple of 8
+     * @param amount Amount between 0 and 7
+     */
+    public static void shift(char[] buffer, int offset, int length, int amount) {
+        for (int i = offset; i < offset + length; i += 8) {
+            rotate(buffer, i, 8, amount);
+        }
+    }
+
+    /**
+     * Shifts every chunk of 8 to the left by an amount.
+     *
+     * @param buffer Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text, a multiple of 8
+     * @param amount Amount between 0 and 7
+     */
+    public static void shift(byte[] buffer, int offset, int length, int amount) {
+        for (int i = offset; i < offset + length; i += 8) {
+            reverse(buffer, i, i + amount);
+            reverse(buffer, i + amount, i + 8);
+            reverse(buffer, i, i + 8);
+        }
+    }
+
+    /**
+     * Rotates a piece of text to the left, so the character at offset + amount
+     * comes first. Done with three reversals, so no copy is needed.
+     *
+     * @param buffer Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @param amount Amount between 0 and length
+     */
+    public static void rotate(char[] buffer, int offset, int length, int amount) {
+        reverse(buffer, offset, offset + amount);
+        reverse(buffer, offset + amount, offset + length);
+        reverse(buffer, offset, offset + length);
+    }
+
+    private static void reverse(char[] buffer, int from, int to) {
+        for (to--; from < to; from++, to--) {
+            char temp = buffer[from];
+            buffer[from] = buffer[to];
+            buffer[to] = temp;
+        }
+    }
+
+    private static void reverse(byte[] buffer, int from, int to) {
+        for (to--; from < to; from++, to--) {
+            byte temp = buffer[from];
+            buffer[from] = buffer[to];
+            buffer[to] = temp;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Deciphers a single byte encoded cipher while it is read. Every chunk of 8
+ * is deciphered by {@link Decipher} as soon as all of it has arrived, so the
+ * first bytes can be used before the end of the cipher is even sent, and the
+ * memory used is one buffer whatever the length of the cipher.
+ * <p>
+ * A cipher whose length is not a multiple of 8 deciphers to nothing, but a
+ * stream has given out its first chunks by the time it finds out. It throws
+ * an {@link IOException} at the end instead, and the broken last chunk is
+ * never given out.
+ */
+public class DecipherInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CompiledKey key;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    //Deciphered bytes are between position and deciphered, the start of the next chunk up to filled
+    private int position, deciphered, filled;
+    private boolean ended;
+
+    /**
+     * Creates the stream for a cipher made with the usual number of rounds.
+     *
+     * @param in Stream of the cipher
+     * @param key Non negative key
+     */
+    public DecipherInputStream(InputStream in, int key) {
+        this(in, CompiledKey.of(key, Decipher.ROUNDS));
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param in Stream of the cipher
+     * @param key Compiled key
+     */
+    public DecipherInputStream(InputStream in, CompiledKey key) {
+        super(in);
+        this.key = key;
+    }
+
+    /**
+     * Reads until at least one chunk is deciphered.
+     *
+     * @return False at the end of the cipher
+     * @throws IOException If the cipher ends inside a chunk
+     */
+    private boolean fill() throws IOException {
+        if (position < deciphered) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        System.arraycopy(buffer, deciphered, buffer, 0, filled - deciphered);
+        filled -= deciphered;
+        position = deciphered = 0;
+        while (filled < 8) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                ended = true;
+                if (filled != 0) {
+                    throw new IOException("Cipher ended inside a chunk of 8");
+                }
+                return false;
+            }
+            filled += read;
+        }
+        deciphered = filled & ~7;
+        Decipher.resolve(buffer, 0, deciphered, key);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, deciphered - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int count = (int) Math.min(n - skipped, deciphered - position);
+            position += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return deciphered - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,136 @@
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Deciphers a cipher while it is read. Every chunk of 8 is deciphered by
+ * {@link Decipher} as soon as all of it has arrived, so the first characters
+ * can be used before the end of the cipher is even sent, and the memory used
+ * is one buffer whatever the length of the cipher.
+ * <p>
+ * A cipher whose length is not a multiple of 8 deciphers to nothing, but a
+ * stream has given out its first chunks by the time it finds out. It throws
+ * an {@link IOException} at the end instead, and the broken last chunk is
+ * never given out.
+ */
+public class DecipherReader extends FilterReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CompiledKey key;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    //Deciphered characters are between position and deciphered, the start of the next chunk up to filled
+    private int position, deciphered, filled;
+    private boolean ended;
+
+    /**
+     * Creates the stream for a cipher made with the usual number of rounds.
+     *
+     * @param in Stream of the cipher
+     * @param key Non negative key
+     */
+    public DecipherReader(Reader in, int key) {
+        this(in, CompiledKey.of(key, Decipher.ROUNDS));
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param in Stream of the cipher
+     * @param key Compiled key
+     */
+    public DecipherReader(Reader in, CompiledKey key) {
+        super(in);
+        this.key = key;
+    }
+
+    /**
+     * Reads until at least one chunk is deciphered.
+     *
+     * @return False at the end of the cipher
+     * @throws IOException If the cipher ends inside a chunk
+     */
+    private boolean fill() throws IOException {
+        if (position < deciphered) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        System.arraycopy(buffer, deciphered, buffer, 0, filled - deciphered);
+        filled -= deciphered;
+        position = deciphered = 0;
+        while (filled < 8) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                ended = true;
+                if (filled != 0) {
+                    throw new IOException("Cipher ended inside a chunk of 8");
+                }
+                return false;
+            }
+            filled += read;
+        }
+        deciphered = filled & ~7;
+        Decipher.resolve(buffer, 0, deciphered, key);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    @Override
+    public int read(char[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, deciphered - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n < 0) {
+            throw new IllegalArgumentException("skip value is negative");
+        }
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int count = (int) Math.min(n - skipped, deciphered - position);
+            position += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean ready() {
+        //Only whole deciphered chunks can be read without blocking
+        return position < deciphered;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+}
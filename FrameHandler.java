@@ -0,0 +1,51 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * What a connection is handed to once the client asked for a long lived
+ * exchange of {@link WireProtocol} frames. The transport reads the frames and
+ * gives them to the handler one at a time and in order. The handler answers
+ * through a {@link FrameSink}, from any thread.
+ */
+interface FrameHandler {
+
+    /**
+     * Sends frames to the client. It has to be safe to call from any thread.
+     */
+    interface FrameSink {
+
+        void send(ByteBuffer frame);
+    }
+
+    /**
+     * Handles a frame from the client.
+     *
+     * @param frame The frame
+     * @throws IOException If the frame is not one the client may send
+     */
+    void onFrame(WireProtocol.Frame frame) throws IOException;
+
+    /**
+     * @return Requests waiting for upstream
+     */
+    int getInFlight();
+
+    /**
+     * @return True if the transport should stop reading until an answer goes
+     */
+    boolean isFull();
+
+    /**
+     * Waits until a new request can be taken, for the blocking transport.
+     *
+     * @throws InterruptedIOException If the thread is interrupted
+     */
+    void awaitCapacity() throws InterruptedIOException;
+
+    /**
+     * Called once the connection is closed.
+     */
+    void close();
+}
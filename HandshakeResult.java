@@ -0,0 +1,40 @@
+
+import java.io.Serializable;
+
+/**
+ * Answer of {@link ServerInterface#exchange(String, int, int, int)}: the
+ * public value of the server, from which the client computes the key, and the
+ * cipher made with that key.
+ */
+public class HandshakeResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int x;
+    private final String cipher;
+
+    /**
+     * Creates the answer.
+     *
+     * @param x Public value of the server
+     * @param cipher Cipher made with the key
+     */
+    public HandshakeResult(int x, String cipher) {
+        this.x = x;
+        this.cipher = cipher;
+    }
+
+    /**
+     * @return Public value of the server
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return Cipher made with the key
+     */
+    public String getCipher() {
+        return cipher;
+    }
+}
@@ -0,0 +1,49 @@
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport for clients in the same process as the server. A client finds
+ * the server with {@link #lookup(int)} and calls it directly: nothing is
+ * serialized or copied, the arguments and the results are passed as they
+ * are. It is used to embed the client and the server in one process, and to
+ * measure the cost of the handshake apart from the cost of the network.
+ */
+public class InProcessTransport implements ServerTransport {
+
+    //Started servers, by port
+    private static final ConcurrentHashMap<Integer, MyServer> SERVERS = new ConcurrentHashMap<>();
+
+    private MyServer server;
+
+    /**
+     * Finds a server started with this transport.
+     *
+     * @param port Port of the server
+     * @return The server, or null if none was started on this port
+     */
+    public static ServerInterface lookup(int port) {
+        return SERVERS.get(port);
+    }
+
+    @Override
+    public String getName() {
+        return "inprocess";
+    }
+
+    @Override
+    public void start(MyServer server) throws IOException {
+        if (SERVERS.putIfAbsent(server.getPort(), server) != null) {
+            throw new IOException("A server is already running in this process on port " + server.getPort());
+        }
+        this.server = server;
+    }
+
+    @Override
+    public void close() {
+        //Not started, or another server had the port
+        if (server != null) {
+            SERVERS.remove(server.getPort(), server);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with logarithmic buckets, in the style of HdrHistogram.
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets of equal
+ * width, so a value is kept with an error of at most 1 / SUB_BUCKETS (about
+ * 3%) whatever its size, and the whole range of a long fits in under two
+ * thousand counters.
+ * <p>
+ * Recording takes no lock and allocates nothing: it finds the bucket with a
+ * few bit operations and increments it. Reading is not atomic with the
+ * recording, so a snapshot taken under load may be a few values behind.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+
+    /**
+     * Buckets in every power of two.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param nanos Latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //Another thread raised the max, check against the new one
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        //The top SUB_BITS + 1 bits of the value pick the bucket
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Gets the value below which a share of the recorded values are.
+     *
+     * @param percentile Share between 0 and 100
+     * @return The value in nanoseconds, rounded up to its bucket, or 0 if
+     * nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Largest recorded value in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Mean of the recorded values in nanoseconds, 0 if there are none
+     */
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return The current percentiles, in microseconds
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Percentiles of a histogram at one moment, in microseconds. Seen over
+     * JMX as a composite value.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final double mean, p50, p90, p99, p999, max;
+
+        private Snapshot(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean() / 1000;
+            p50 = histogram.getValueAtPercentile(50) / 1000.0;
+            p90 = histogram.getValueAtPercentile(90) / 1000.0;
+            p99 = histogram.getValueAtPercentile(99) / 1000.0;
+            p999 = histogram.getValueAtPercentile(99.9) / 1000.0;
+            max = histogram.getMax() / 1000.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return mean;
+        }
+
+        public double getP50Micros() {
+            return p50;
+        }
+
+        public double getP90Micros() {
+            return p90;
+        }
+
+        public double getP99Micros() {
+            return p99;
+        }
+
+        public double getP999Micros() {
+            return p999;
+        }
+
+        public double getMaxMicros() {
+            return max;
+        }
+    }
+}
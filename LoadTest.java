@@ -0,0 +1,381 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator that runs offline. It starts a {@link MyServer} in the chosen
+ * mode against a {@link StubCiphertextProvider}, then runs simulated clients
+ * at a target rate and prints the throughput and the latency percentiles of
+ * every phase of the handshake. Every received cipher is deciphered and
+ * checked against the text of the stub. A mode ending in -v2 makes the clients
+ * use the binary calls and frames of {@link WireProtocol}, and rmi-exchange
+ * makes them use the single call {@link ServerInterface#exchange}. The
+ * inprocess modes make the same calls as the rmi ones directly on the server,
+ * through {@link InProcessTransport}, so the difference between the two is
+ * the cost of RMI. With
+ * socket-session or nio-session every client keeps one {@link SessionClient}
+ * open and only sends requests on it. With socket-mux or nio-mux all the
+ * clients share one {@link MultiplexedClient} of {@link #MUX_CONNECTIONS}
+ * connections, each handshake on a stream of its own.
+ * <p>
+ * Usage:
+ * <blockquote><pre>
+ * java LoadTest [rmi|socket|nio|inprocess][-v2]|[rmi|inprocess]-exchange|[socket|nio]-[session|mux] [clients] [rate per second] [seconds] [latency ms] [jitter ms] [length]
+ * </pre></blockquote>
+ */
+public class LoadTest {
+
+    private static final int PORT = 1500;
+
+    /**
+     * Connections shared by the clients of the mux modes.
+     */
+    public static final int MUX_CONNECTIONS = 4;
+
+    private final String mode;
+    private final boolean binary, exchange, sessions, multiplexed;
+    private MultiplexedClient mux;
+    //Group of the single call, picked once like MyClient does
+    private int[] group;
+    private final int clients;
+    private final double rate;
+    private final long durationNanos;
+    private final StubCiphertextProvider provider;
+    private final String[] phases;
+    private final Recorder[] recorders;
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong wrongCiphers = new AtomicLong();
+    private ServerInterface rmiServer;
+
+    /**
+     * Creates the test.
+     *
+     * @param mode rmi, socket, nio or inprocess, with -v2 for the binary
+     * protocol, or rmi-exchange or inprocess-exchange, or socket or nio with
+     * -session or -mux
+     * @param clients Number of concurrent clients
+     * @param rate Handshakes per second over all clients
+     * @param seconds Duration of the run
+     * @param provider Stub the server gets its ciphers from
+     */
+    public LoadTest(String mode, int clients, double rate, int seconds, StubCiphertextProvider provider) {
+        this.binary = mode.endsWith("-v2");
+        this.exchange = mode.endsWith("-exchange");
+        this.sessions = mode.endsWith("-session");
+        this.multiplexed = mode.endsWith("-mux");
+        this.mode = binary || exchange || sessions || multiplexed ? mode.substring(0, mode.indexOf('-')) : mode;
+        this.clients = clients;
+        this.rate = rate;
+        this.durationNanos = seconds * 1000000000L;
+        this.provider = provider;
+        if (exchange) {
+            phases = new String[]{"exchange", "total"};
+        } else if (sessions) {
+            phases = new String[]{"request"};
+        } else if (multiplexed) {
+            phases = new String[]{"stream"};
+        } else if (this.mode.equals("rmi") || this.mode.equals("inprocess")) {
+            phases = new String[]{"getPrimes", "setY", "getCipher", "total"};
+        } else {
+            phases = new String[]{"connect+primes", "name+y", "cipher", "total"};
+        }
+        recorders = new Recorder[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            recorders[i] = new Recorder();
+        }
+    }
+
+    /**
+     * Starts the server, runs the clients and prints the report.
+     *
+     * @throws Exception If the server can not be started
+     */
+    public void run() throws Exception {
+        MyServer server = new MyServer(PORT, provider);
+        ServerTransport.forName(mode).start(server);
+        if (mode.equals("rmi")) {
+            rmiServer = (ServerInterface) LocateRegistry.getRegistry("localhost", 1099).lookup(" MyServer ");
+        } else if (mode.equals("inprocess")) {
+            rmiServer = InProcessTransport.lookup(PORT);
+        }
+        //Let the prime pool fill before measuring
+        Thread.sleep(500);
+        Random random = new Random();
+        int p = PrimePool.findSafePrime(random, 31);
+        group = new int[]{p, PrimePool.findGenerator(random, p)};
+        if (multiplexed) {
+            mux = new MultiplexedClient("localhost", PORT, MUX_CONNECTIONS);
+        }
+
+        Thread[] threads = new Thread[clients];
+        //Each client runs one handshake every clients / rate seconds, starting at a different offset
+        long interval = (long) (clients * 1e9 / rate);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            threads[i] = new Thread(() -> runClient(client, start + interval * client / clients, interval,
+                    start + durationNanos));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report(seconds, server.getMetrics());
+        System.exit(0);
+    }
+
+    private void runClient(int client, long firstStart, long interval, long end) {
+        String name = "user" + client;
+        MyClient decoder = new MyClient("localhost", name, PORT);
+        SessionClient session = null;
+        long next = firstStart;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (multiplexed) {
+                try {
+                    long t0 = System.nanoTime();
+                    String text = mux.getCipher(name).get();
+                    recorders[0].add(System.nanoTime() - t0);
+                    if (!text.equals(provider.getPlainText())) {
+                        wrongCiphers.incrementAndGet();
+                    }
+                } catch (ExecutionException | RuntimeException e) {
+                    errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                next += interval;
+                continue;
+            }
+            if (sessions) {
+                try {
+                    if (session == null || !session.isOpen()) {
+                        session = new SessionClient("localhost", PORT, name);
+                    }
+                    long t0 = System.nanoTime();
+                    String text = session.request().get();
+                    recorders[0].add(System.nanoTime() - t0);
+                    if (!text.equals(provider.getPlainText())) {
+                        wrongCiphers.incrementAndGet();
+                    }
+                } catch (IOException | ExecutionException | RuntimeException e) {
+                    errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                next += interval;
+                continue;
+            }
+            try {
+                long[] times = new long[phases.length];
+                int[] key = new int[1];
+                String cipher = exchange ? rmiExchange(name, times, key)
+                        : rmiServer != null ? rmiHandshake(name, times, key) : socketHandshake(name, times, key);
+                for (int i = 0; i < phases.length; i++) {
+                    recorders[i].add(times[i]);
+                }
+                if (!decoder.resolveCipher(cipher, key[0]).equals(provider.getPlainText())) {
+                    wrongCiphers.incrementAndGet();
+                }
+            } catch (IOException | RuntimeException e) {
+                errors.incrementAndGet();
+            }
+            next += interval;
+        }
+        if (session != null) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    private String rmiExchange(String name, long[] times, int[] key) throws RemoteException {
+        int p = group[0];
+        int g = group[1];
+        int b = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        long t0 = System.nanoTime();
+        HandshakeResult result = rmiServer.exchange(name, p, g, ModMath.powerModulo(1, g, b, p));
+        long t1 = System.nanoTime();
+        key[0] = ModMath.powerModulo(result.getX(), g, b, p);
+        times[0] = t1 - t0;
+        times[1] = t1 - t0;
+        return result.getCipher();
+    }
+
+    private String rmiHandshake(String name, long[] times, int[] key) throws RemoteException {
+        int lock = ThreadLocalRandom.current().nextInt(9) + 1;
+        long t0 = System.nanoTime();
+        int[] group;
+        if (binary) {
+            group = rmiServer.getGroup(name);
+        } else {
+            String[] primes = rmiServer.getPrimes(name).split(" ");
+            group = new int[4];
+            for (int i = 0; i < 4; i++) {
+                group[i] = Integer.parseInt(primes[i]);
+            }
+        }
+        long t1 = System.nanoTime();
+        int x = group[0];
+        int g = group[1];
+        int p = group[2];
+        int ID = group[3];
+        int b = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        key[0] = ModMath.powerModulo(x, g, b, p);
+        int y = ModMath.powerModulo(1, g, b, p);
+        if (binary) {
+            rmiServer.setY(y, lock, ID);
+        } else {
+            rmiServer.setY(Integer.toString(y), lock, ID);
+        }
+        long t2 = System.nanoTime();
+        String cipher = rmiServer.getCipher(lock, ID);
+        long t3 = System.nanoTime();
+        times[0] = t1 - t0;
+        times[1] = t2 - t1;
+        times[2] = t3 - t2;
+        times[3] = t3 - t0;
+        return cipher;
+    }
+
+    private String socketHandshake(String name, long[] times, int[] key) throws IOException {
+        long t0 = System.nanoTime();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            int[] group;
+            if (binary) {
+                byte[] greeting = new byte[in.readUnsignedShort()];
+                in.readFully(greeting);
+                group = WireProtocol.parseGreeting(greeting, greeting.length);
+                if ((group[4] & WireProtocol.BINARY) == 0) {
+                    throw new IOException("Server does not speak " + WireProtocol.VERSION);
+                }
+            } else {
+                String[] primes = in.readUTF().split(" ");
+                group = new int[4];
+                for (int i = 0; i < 3; i++) {
+                    group[i] = Integer.parseInt(primes[i]);
+                }
+            }
+            long t1 = System.nanoTime();
+            int x = group[0];
+            int g = group[1];
+            int p = group[2];
+            int b = ThreadLocalRandom.current().nextInt(4096) + 4096;
+            key[0] = ModMath.powerModulo(x, g, b, p);
+            int y = ModMath.powerModulo(1, g, b, p);
+            if (binary) {
+                WireProtocol.writeHello(out, name, y);
+            } else {
+                out.writeUTF(name);
+                out.writeUTF(Integer.toString(y));
+            }
+            out.flush();
+            long t2 = System.nanoTime();
+            String cipher = binary ? WireProtocol.readCipher(in) : in.readUTF();
+            long t3 = System.nanoTime();
+            times[0] = t1 - t0;
+            times[1] = t2 - t1;
+            times[2] = t3 - t2;
+            times[3] = t3 - t0;
+            return cipher;
+        }
+    }
+
+    private void report(double seconds, ServerMetrics metrics) {
+        long done = recorders[recorders.length - 1].size();
+        System.out.println(String.format(Locale.ROOT, "mode %s%s, %d clients, target %.0f/s, %.1f s", mode,
+                binary ? "-v2" : exchange ? "-exchange" : sessions ? "-session" : multiplexed ? "-mux" : "", clients, rate, seconds));
+        System.out.println(String.format(Locale.ROOT, "handshakes %d (%.1f/s), errors %d, wrong ciphers %d",
+                done, done / seconds, errors.get(), wrongCiphers.get()));
+        System.out.println(String.format(Locale.ROOT, "%-16s %10s %10s %10s %10s", "phase (ms)", "p50", "p99", "p999", "max"));
+        for (int i = 0; i < phases.length; i++) {
+            long[] sorted = recorders[i].sorted();
+            System.out.println(String.format(Locale.ROOT, "%-16s %10.3f %10.3f %10.3f %10.3f", phases[i],
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+        }
+        String[] serverPhases = {"accept", "parameters", "y receipt", "key derivation", "upstream", "response write"};
+        System.out.println(String.format(Locale.ROOT, "%-16s %10s %10s %10s %10s", "server (ms)", "p50", "p99", "p999", "max"));
+        for (int i = 0; i < serverPhases.length; i++) {
+            LatencyHistogram histogram = metrics.getHistogram(i);
+            if (histogram.getCount() > 0) {
+                System.out.println(String.format(Locale.ROOT, "%-16s %10.3f %10.3f %10.3f %10.3f", serverPhases[i],
+                        histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                        histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Keeps every measured time of one phase.
+     */
+    private static final class Recorder {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args mode, clients, rate, seconds, latency, jitter and length
+     * @throws Exception If the server can not be started
+     */
+    public static void main(String args[]) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 500;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        long latency = args.length > 4 ? (long) (Double.parseDouble(args[4]) * 1000) : 5000;
+        long jitter = args.length > 5 ? (long) (Double.parseDouble(args[5]) * 1000) : 2000;
+        int length = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+        new LoadTest(mode, clients, rate, seconds, new StubCiphertextProvider(latency, jitter, length)).run();
+    }
+}
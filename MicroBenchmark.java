@@ -0,0 +1,219 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the key derivation and decipher hot paths.
+ * <p>
+ * Every benchmark is warmed up, then run for a number of timed iterations.
+ * The report gives the average time per operation and the bytes allocated per
+ * operation, measured with the allocation counter of the current thread (the
+ * same number JMH reports as gc.alloc.rate.norm). An operation slower than
+ * the limit is reported as too slow and skipped for the longer messages, which
+ * shows where a path is not linear in the message length.
+ * <p>
+ * Usage:
+ * <blockquote><pre>
+ * java MicroBenchmark [name regex] [lengths, comma separated]
+ * </pre></blockquote>
+ */
+public class MicroBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3, MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 200000000L, SLOW_NANOS = 2000000000L;
+    private static final int[] KEYS = {0, 5, 103, 1234567};
+
+    /**
+     * One operation to measure. The result is kept so the JIT can not drop it.
+     */
+    private interface Operation {
+
+        Object run();
+    }
+
+    //Results go here so the work can not be optimised away
+    private static volatile Object sink;
+
+    private final Pattern filter;
+    private final com.sun.management.ThreadMXBean threads;
+    private final Set<String> tooSlow = new HashSet<>();
+
+    private MicroBenchmark(Pattern filter) {
+        this.filter = filter;
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private void measure(String name, String param, Operation operation) {
+        if (!filter.matcher(name).find() || tooSlow.contains(name)) {
+            return;
+        }
+        long start = System.nanoTime();
+        sink = operation.run();
+        if (System.nanoTime() - start > SLOW_NANOS) {
+            print(name, param, "too slow", "");
+            tooSlow.add(name);
+            return;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation);
+        }
+        double nanos = 0, bytes = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            double[] result = iteration(operation);
+            nanos += result[0];
+            bytes += result[1];
+        }
+        print(name, param, String.format(Locale.ROOT, "%.1f", nanos / MEASURE_ITERATIONS),
+                String.format(Locale.ROOT, "%.1f", bytes / MEASURE_ITERATIONS));
+    }
+
+    /**
+     * Runs the operation for one iteration.
+     *
+     * @return Nanoseconds and allocated bytes per operation
+     */
+    private double[] iteration(Operation operation) {
+        long thread = Thread.currentThread().getId();
+        long operations = 0;
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        return new double[]{(double) elapsed / operations, (double) bytes / operations};
+    }
+
+    private static void print(String name, String param, String nanos, String bytes) {
+        System.out.println(String.format(Locale.ROOT, "%-34s %-22s %16s %14s", name, param, nanos, bytes));
+    }
+
+    /**
+     * Makes a random upper case message with some spaces, like the ciphers.
+     */
+    private static String message(int length, long seed) {
+        Random random = new Random(seed);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            int r = random.nextInt(30);
+            chars[i] = r < 26 ? (char) ('A' + r) : ' ';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads a stream to the end, in pieces of the usual socket buffer size.
+     *
+     * @return Number of bytes read
+     */
+    private static long drain(InputStream in) {
+        byte[] piece = new byte[8192];
+        long total = 0;
+        try {
+            for (int read; (read = in.read(piece)) > 0; ) {
+                total += read;
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        return total;
+    }
+
+    private void run(int[] lengths) {
+        System.out.println("Vectorized byte decipher: " + Decipher.isVectorized());
+        print("benchmark", "param", "ns/op", "B/op");
+        MyServer server = new MyServer(0, new StubCiphertextProvider(0, 0, 8));
+        ServerCommunicator session = new ServerCommunicator(server, 0, 2147483647, 7, 5000);
+        MyClient client = new MyClient("localhost", "bench", 0);
+
+        //Key derivation
+        for (int power : new int[]{4096, 8191}) {
+            measure("ServerCommunicator.powerModulo", "power=" + power,
+                    () -> session.powerModulo(1, 7, power, 2147483647));
+            measure("MyClient.powerModulo", "power=" + power,
+                    () -> client.powerModulo(12345, 7, power, 2147483647));
+        }
+        SessionStore store = new SessionStore();
+        for (int key : KEYS) {
+            measure("SessionStore.lockKey", "key=" + key, () -> SessionStore.lockKey(key, 7));
+            String locked = SessionStore.lockKey(key, 7);
+            measure("MyServer.unlockKey", "key=" + key, () -> server.unlockKey(locked, 7));
+            //x = 1 makes the stored key y itself
+            store.add(key, 2147483647, 1, "bench");
+            store.setY(key, key, 7);
+            measure("SessionStore.unlock", "key=" + key, () -> store.unlock(key, 7));
+        }
+        //makeCiur is gone, the safe prime search of the pool replaced it
+        Random random = new Random(1);
+        measure("PrimePool.findSafePrime", "bits=31", () -> PrimePool.findSafePrime(random, 31));
+        PrimeAllocator primes = server.getPrimeAllocator();
+        measure("MyServer.getRandomP", "acquire+release", () -> {
+            int p = server.getRandomP();
+            primes.release(p);
+            return p;
+        });
+        measure("MyServer.getRandomG", "p=2147483647", () -> server.getRandomG(2147483647));
+
+        //Decipher
+        for (int length : lengths) {
+            String message = message(length, length);
+            String chunk = message.substring(0, 8);
+            for (int key : KEYS) {
+                String param = "len=" + length + ",key=" + key;
+                measure("MyClient.resolveCipher", param, () -> client.resolveCipher(message, key));
+                measure("MyClient.uncrypt", param, () -> client.uncrypt(message, key % 8, key % 26));
+                measure("MyClient.substWord", param, () -> client.substWord(message, key % 26));
+                measure("MyClient.shiftWord", param, () -> client.shiftWord(message, key % 8));
+                //In place, so every run deciphers the result of the previous one
+                char[] chars = message.toCharArray();
+                measure("Decipher.resolve(char[])", param, () -> Decipher.resolve(chars, 0, chars.length, key));
+                byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+                measure("Decipher.resolve(byte[])", param, () -> Decipher.resolve(bytes, 0, bytes.length, key));
+                CompiledKey compiled = CompiledKey.of(key, Decipher.ROUNDS);
+                measure("Decipher.resolveScalar(byte[])", param,
+                        () -> Decipher.resolveScalar(bytes, 0, bytes.length, compiled));
+                measure("ParallelDecipher.resolve(char[])", param,
+                        () -> ParallelDecipher.resolve(chars, 0, chars.length, compiled));
+                measure("ParallelDecipher.resolve(byte[])", param,
+                        () -> ParallelDecipher.resolve(bytes, 0, bytes.length, compiled));
+                measure("DecipherInputStream.read", param,
+                        () -> drain(new DecipherInputStream(new ByteArrayInputStream(bytes), compiled)));
+            }
+            if (length == 8) {
+                for (int key : KEYS) {
+                    measure("MyClient.shiftChunk", "key=" + key, () -> client.shiftChunk(chunk, key % 8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args Optional name filter and message lengths
+     */
+    public static void main(String args[]) {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : "");
+        int[] lengths = {8, 1024, 65536, 1048576, 4194304};
+        if (args.length > 1) {
+            String[] parts = args[1].split(",");
+            lengths = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                lengths[i] = Integer.parseInt(parts[i]);
+            }
+        }
+        new MicroBenchmark(filter).run(lengths);
+        System.exit(0);
+    }
+}
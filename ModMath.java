@@ -0,0 +1,120 @@
+
+import java.math.BigInteger;
+
+/**
+ * Modular arithmetic shared by the server and the client. Powers are computed
+ * by square and multiply, so the cost grows with the number of bits of the
+ * power instead of with the power itself.
+ * <p>
+ * Moduli whose square fits in a long are done with plain long arithmetic.
+ * Anything bigger goes through {@link BigInteger#modPow}, which uses Montgomery
+ * multiplication for odd moduli.
+ */
+public final class ModMath {
+
+    //Largest modulo for which the product of two residues still fits in a long
+    private static final long LONG_SAFE_MODULO = 3037000499L;
+
+    private ModMath() {
+    }
+
+    /**
+     * Computes the modulo of a number multiplied by a factor, power number of
+     * times. Gives the same result as multiplying step by step, but never
+     * overflows for int values.
+     * <p>
+     * Example:
+     * <blockquote><pre>
+     * powerModulo(2,3,4,5) = (2*3*3*3*3)%5
+     * </pre></blockquote>
+     *
+     * @param number Initial number
+     * @param factor Factor
+     * @param power Power
+     * @param modulo Mod
+     * @return The result
+     */
+    public static int powerModulo(int number, int factor, int power, int modulo) {
+        long solution = number % modulo;
+        if (power > 0) {
+            solution = solution * powerModulo(factor, power, modulo) % modulo;
+        }
+        return (int) solution;
+    }
+
+    /**
+     * Computes base to the power exponent, modulo modulo.
+     *
+     * @param base Base
+     * @param exponent Non negative exponent
+     * @param modulo Positive modulo
+     * @return The result, between 0 and modulo - 1
+     */
+    public static long powerModulo(long base, long exponent, long modulo) {
+        if (modulo > LONG_SAFE_MODULO) {
+            return BigInteger.valueOf(base).modPow(BigInteger.valueOf(exponent),
+                    BigInteger.valueOf(modulo)).longValue();
+        }
+        long result = 1 % modulo;
+        base = Math.floorMod(base, modulo);
+        while (exponent > 0) {
+            if ((exponent & 1) == 1) {
+                result = result * base % modulo;
+            }
+            base = base * base % modulo;
+            exponent >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a number is prime with a Miller-Rabin test on the bases 2, 3,
+     * 5 and 7, which gives no false positives for any int.
+     *
+     * @param number Number to check
+     * @return True if the number is prime, otherwise False
+     */
+    public static boolean isPrime(int number) {
+        if (number < 2) {
+            return false;
+        }
+        for (int small : new int[]{2, 3, 5, 7}) {
+            if (number % small == 0) {
+                return number == small;
+            }
+        }
+        int odd = number - 1;
+        int twos = 0;
+        while ((odd & 1) == 0) {
+            odd >>= 1;
+            twos++;
+        }
+        for (int base : new int[]{2, 3, 5, 7}) {
+            long witness = powerModulo(base, odd, number);
+            if (witness == 1 || witness == number - 1) {
+                continue;
+            }
+            int i = 1;
+            while (i < twos && witness != number - 1) {
+                witness = witness * witness % number;
+                i++;
+            }
+            if (witness != number - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes base to the power exponent, modulo modulo, for any size.
+     *
+     * @param base Base
+     * @param exponent Non negative exponent
+     * @param modulo Positive modulo
+     * @return The result, between 0 and modulo - 1
+     */
+    public static BigInteger powerModulo(BigInteger base, BigInteger exponent, BigInteger modulo) {
+        return base.modPow(exponent, modulo);
+    }
+}
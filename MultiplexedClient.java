@@ -0,0 +1,284 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client that gets ciphers for many users over a small pool of connections,
+ * with the multiplexed frames of {@link WireProtocol}. Every user gets a
+ * stream of its own on one of the connections, and the server stores it like
+ * any other user: it has its own prime, its own key exchange and its own
+ * lock, so the users never see each other's keys.
+ * <p>
+ * The users are spread over the connections in turn. Each connection has a
+ * thread reading the answers and a thread writing the frames, so an answer
+ * never waits for a write to go through.
+ */
+public class MultiplexedClient implements Closeable {
+
+    //Largest answer accepted, a cipher of a gigabyte
+    private static final int MAX_ANSWER = 1 << 30;
+    //Milliseconds to connect and get the greeting
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    /**
+     * Opens the connections.
+     *
+     * @param host Host of the server
+     * @param port Port of the server
+     * @param connections Number of connections shared by the users
+     * @throws IOException If the server can not be reached or does not
+     * multiplex users
+     */
+    public MultiplexedClient(String host, int port, int connections) throws IOException {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        this.connections = new Connection[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                this.connections[i] = new Connection(host, port, i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets a cipher for a user, on a stream of its own.
+     *
+     * @param name Name of the user
+     * @return The deciphered text, or an IOException if the stream or the
+     * connection failed
+     */
+    public CompletableFuture<String> getCipher(String name) {
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        return connections[index].open(name);
+    }
+
+    /**
+     * @return Number of users waiting for their cipher
+     */
+    public int getOpenStreams() {
+        int open = 0;
+        for (Connection connection : connections) {
+            open += connection.streams.size();
+        }
+        return open;
+    }
+
+    /**
+     * Closes the connections. The users still waiting fail.
+     */
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * One connection and the streams on it.
+     */
+    private static final class Connection {
+
+        //Tells the writer thread to stop
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Random random = new Random();
+        private final LinkedBlockingQueue<ByteBuffer> toWrite = new LinkedBlockingQueue<>();
+        //Streams waiting for their cipher
+        private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+        private final AtomicInteger nextStream = new AtomicInteger();
+        private volatile IOException failure;
+        private volatile boolean closed;
+
+        Connection(String host, int port, int index) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] greeting = new byte[in.readUnsignedShort()];
+                in.readFully(greeting);
+                int[] values = WireProtocol.parseGreeting(greeting, greeting.length);
+                if ((values[4] & WireProtocol.MULTIPLEXING) == 0) {
+                    throw new IOException("Server does not multiplex users");
+                }
+                out.writeShort(WireProtocol.MARKER);
+                write(WireProtocol.varintFrame(WireProtocol.MULTIPLEX));
+                out.flush();
+                //The answers of a stream may take as long as the upstream needs
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::readAnswers, "mux-reader-" + index);
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::writeFrames, "mux-writer-" + index);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        CompletableFuture<String> open(String name) {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            int id = nextStream.getAndIncrement() & Integer.MAX_VALUE;
+            streams.put(id, new Stream(result));
+            if (failure != null) {
+                //The reader may have already failed the streams
+                streams.remove(id);
+                result.completeExceptionally(failure);
+            } else {
+                toWrite.add(WireProtocol.textFrame(WireProtocol.OPEN, id, name));
+            }
+            return result;
+        }
+
+        /**
+         * Reads the answers until the connection ends.
+         */
+        private void readAnswers() {
+            try {
+                while (true) {
+                    WireProtocol.Frame frame = WireProtocol.readFrame(in, MAX_ANSWER);
+                    ByteBuffer payload = frame.getPayload();
+                    int id = WireProtocol.getVarint(payload);
+                    Stream stream = streams.get(id);
+                    if (stream == null) {
+                        continue;
+                    }
+                    if (frame.type == WireProtocol.OPENED) {
+                        int x = payload.getInt();
+                        exchange(id, stream, x, payload.getInt(), payload.getInt());
+                    } else if (frame.type == WireProtocol.RESPONSE || frame.type == WireProtocol.ERROR) {
+                        streams.remove(id);
+                        String text = frame.getText(payload.position());
+                        if (frame.type == WireProtocol.RESPONSE) {
+                            try {
+                                stream.result.complete(decipher(text, stream.key));
+                            } catch (RuntimeException e) {
+                                //A cipher that does not fit the key only fails its stream
+                                stream.result.completeExceptionally(new IOException("Bad cipher", e));
+                            }
+                        } else {
+                            stream.result.completeExceptionally(new IOException(text));
+                        }
+                        toWrite.add(WireProtocol.varintFrame(WireProtocol.CLOSE, id));
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                //A frame that does not parse, the connection can not be trusted
+                failure = new IOException("Bad frame", e);
+            }
+            IOException closed = new IOException("Connection closed", failure);
+            failure = closed;
+            toWrite.add(END);
+            close();
+            for (Integer id : streams.keySet()) {
+                Stream stream = streams.remove(id);
+                if (stream != null) {
+                    stream.result.completeExceptionally(closed);
+                }
+            }
+        }
+
+        /**
+         * Makes the key of a stream from the values of the server, then sends
+         * y with a lock and asks for the cipher.
+         */
+        private void exchange(int id, Stream stream, int x, int g, int p) {
+            int b = random.nextInt(4096) + 4096;
+            //The lock is a relatively small value, like the one of MyClient
+            int lock = random.nextInt(9) + 1;
+            stream.key = CompiledKey.of(ModMath.powerModulo(x, g, b, p), Decipher.ROUNDS);
+            toWrite.add(WireProtocol.streamFrame(WireProtocol.KEY, id, ModMath.powerModulo(1, g, b, p), lock));
+            toWrite.add(WireProtocol.streamFrame(WireProtocol.FETCH, id, lock));
+        }
+
+        /**
+         * Writes the queued frames, flushing once the queue is empty.
+         */
+        private void writeFrames() {
+            try {
+                while (true) {
+                    ByteBuffer frame = toWrite.take();
+                    if (frame == END) {
+                        break;
+                    }
+                    write(frame);
+                    while ((frame = toWrite.poll()) != null && frame != END) {
+                        write(frame);
+                    }
+                    out.flush();
+                    if (frame == END) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                //A write racing with the close of the connection is expected
+                if (!closed && failure == null) {
+                    System.err.println("Error in printing the msg");
+                }
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.position(), frame.remaining());
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+
+        private static String decipher(String cipher, CompiledKey key) {
+            char[] solved = cipher.toCharArray();
+            int length = ParallelDecipher.resolve(solved, 0, solved.length, key);
+            return new String(solved, 0, length);
+        }
+    }
+
+    private static final class Stream {
+
+        final CompletableFuture<String> result;
+        //Set by the reader thread before the cipher is asked for
+        CompiledKey key;
+
+        Stream(CompletableFuture<String> result) {
+            this.result = result;
+        }
+    }
+}
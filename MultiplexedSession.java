@@ -0,0 +1,149 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Server side of a multiplexed connection of {@link WireProtocol}. Many
+ * logical users share the connection, each on its own stream. Every stream is
+ * a user of its own in the session store of {@link MyServer}, with its own
+ * prime, key exchange and lock, exactly like a user of the RMI calls:
+ * <blockquote><pre>
+ * OPEN stream name      -> OPENED stream x g p      (getPrimes)
+ * KEY stream y lock                                 (setY)
+ * FETCH stream lock     -> RESPONSE stream cipher   (getCipher)
+ * CLOSE stream                                      (the user is removed)
+ * </pre></blockquote>
+ * A failed step is answered with an ERROR on the stream. The streams still
+ * open when the connection closes are removed with it.
+ */
+class MultiplexedSession implements FrameHandler {
+
+    private final MyServer server;
+    private final FrameSink sink;
+    private final int maxInFlight;
+    //IDs of the users by stream, only used by the thread giving the frames
+    private final HashMap<Integer, Integer> streams = new HashMap<>();
+    //Guarded by this, also changed by the upstream threads
+    private int inFlight;
+
+    /**
+     * Creates the session.
+     *
+     * @param server Server that stores the users and gets the ciphers
+     * @param sink Where the answers go
+     * @param maxInFlight Fetches waiting for upstream before the transport
+     * stops reading
+     */
+    MultiplexedSession(MyServer server, FrameSink sink, int maxInFlight) {
+        this.server = server;
+        this.sink = sink;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void onFrame(WireProtocol.Frame frame) throws IOException {
+        ByteBuffer payload = frame.getPayload();
+        int stream = WireProtocol.getVarint(payload);
+        Integer user = streams.get(stream);
+        if (frame.type == WireProtocol.OPEN) {
+            open(stream, user, frame.getText(payload.position()));
+            return;
+        }
+        if (frame.type == WireProtocol.CLOSE) {
+            if (user != null) {
+                streams.remove(stream);
+                server.removeUser(user);
+            }
+            return;
+        }
+        if (frame.type != WireProtocol.KEY && frame.type != WireProtocol.FETCH) {
+            throw new IOException("Unexpected frame " + frame.type);
+        }
+        if (user == null) {
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, "Unknown stream"));
+        } else if (payload.remaining() < (frame.type == WireProtocol.KEY ? 8 : 4)) {
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, "Short frame"));
+        } else if (frame.type == WireProtocol.KEY) {
+            int y = payload.getInt();
+            server.keyUser(user, y, payload.getInt());
+        } else {
+            fetch(stream, user, payload.getInt());
+        }
+    }
+
+    private void open(int stream, Integer user, String name) {
+        if (user != null) {
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, "Stream already open"));
+            return;
+        }
+        int[] group;
+        try {
+            group = server.openUser(name);
+        } catch (IllegalStateException e) {
+            //No prime is free for this user
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, e.getMessage()));
+            return;
+        }
+        streams.put(stream, group[3]);
+        sink.send(WireProtocol.streamFrame(WireProtocol.OPENED, stream, group[0], group[1], group[2]));
+    }
+
+    private void fetch(int stream, int user, int lock) {
+        String name = server.getUserName(user);
+        int key;
+        try {
+            key = server.unlockUser(user, lock);
+        } catch (RuntimeException e) {
+            //No KEY yet, or a lock that does not open the key
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, "Wrong lock or no key"));
+            return;
+        }
+        synchronized (this) {
+            inFlight++;
+        }
+        server.getCipherAsync(name, key).whenComplete((cipher, error) -> {
+            //Freed first, so the transport sees the room when it sends the answer
+            synchronized (this) {
+                inFlight--;
+                notifyAll();
+            }
+            if (error != null) {
+                sink.send(WireProtocol.textFrame(WireProtocol.ERROR, stream, "Upstream failed"));
+            } else {
+                sink.send(WireProtocol.textFrame(WireProtocol.RESPONSE, stream, cipher));
+            }
+        });
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized boolean isFull() {
+        return inFlight >= maxInFlight;
+    }
+
+    @Override
+    public synchronized void awaitCapacity() throws InterruptedIOException {
+        while (inFlight >= maxInFlight) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int user : streams.values()) {
+            server.removeUser(user);
+        }
+        streams.clear();
+    }
+}
@@ -2,6 +2,8 @@ import java.io.*;
 import java.net.*;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Random;
@@ -11,7 +13,8 @@ import java.util.Random;
  * server. First trough the required RMI interface with method calls to a remote
  * server object. Second one is trough socket communication. The second one is
  * faster and should be more stable. I've coded the socket communication as an
- * extra.
+ * extra. A server running in the same process can also be called directly,
+ * with the same calls as RMI but nothing serialized.
  *
  * @author Alexandru Amarandei Stanescu aas1u16 University of Southampton
  */
@@ -36,6 +39,10 @@ public class MyClient implements Runnable {
     private int key, ID;
     //Extra lock to keep the keys on the server safe
     private final int lock;
+    //True when the server speaks the binary version of the socket exchange
+    private volatile boolean binary;
+    //p and g of the single call exchange, the same for all the clients
+    private static int[] group;
 
     /**
      * Creates a new object from:
@@ -93,13 +100,18 @@ public class MyClient implements Runnable {
             System.err.println("Error while connecting to RMI server:");
             System.err.println(e);
         }
+        printCipher(server);
+    }
+
+    /**
+     * This function gets the cipher from a server and prints it.
+     *
+     * @param server The server, null if it was not found
+     */
+    private void printCipher(ServerInterface server) {
         if (server != null) {
             try {
-
-                setPrimes(server.getPrimes(userName));
-                server.setY(Integer.toString(y), lock, ID);
-
-                System.out.println(resolveCipher(server.getCipher(lock, ID)));
+                System.out.println(getCipher(server));
             } catch (RemoteException e) {
                 System.out.println("Something went wrong on server connection");
                 System.out.println(e);
@@ -110,6 +122,86 @@ public class MyClient implements Runnable {
         }
     }
 
+    /**
+     * This function gets the deciphered text from a server reached through
+     * RMI, or from one in this process (see {@link InProcessTransport}).
+     *
+     * @param server The server
+     * @return The deciphered text
+     * @throws RemoteException If the server fails
+     */
+    public String getCipher(ServerInterface server) throws RemoteException {
+        return resolveCipher(exchange(server));
+    }
+
+    /**
+     * This function gets a cipher in a single call, with a group picked by
+     * this client. Servers that do not have the single call are asked with
+     * the three calls instead.
+     *
+     * @param server RMI server
+     * @return The cipher, made with key
+     * @throws RemoteException If the server fails
+     */
+    private String exchange(ServerInterface server) throws RemoteException {
+        try {
+            int[] group = getGroup();
+            p = group[0];
+            g = group[1];
+            b = random.nextInt(4096) + 4096;
+            y = powerModulo(1, g, b, p);
+            HandshakeResult result = server.exchange(userName, p, g, y);
+            x = result.getX();
+            key = powerModulo(x, g, b, p);
+            return result.getCipher();
+        } catch (ServerException e) {
+            if (!isMissingMethod(e)) {
+                throw e;
+            }
+        }
+        try {
+            //The binary calls need no parsing, older servers do not have them
+            int[] group = server.getGroup(userName);
+            setPrimes(group[0], group[1], group[2], group[3]);
+            server.setY(y, lock, ID);
+        } catch (ServerException e) {
+            if (!isMissingMethod(e)) {
+                throw e;
+            }
+            setPrimes(server.getPrimes(userName));
+            server.setY(Integer.toString(y), lock, ID);
+        }
+        return server.getCipher(lock, ID);
+    }
+
+    /**
+     * This function tells if a call failed because the server is older and
+     * does not have the method.
+     *
+     * @param e Exception of the call
+     * @return True if the method is missing on the server
+     */
+    private static boolean isMissingMethod(ServerException e) {
+        return e.getCause() instanceof UnmarshalException;
+    }
+
+    /**
+     * This function gets the group used by the single call. Finding a safe
+     * prime takes a while, so it is done once and shared by all the clients.
+     *
+     * @return p and g
+     */
+    private static int[] getGroup() {
+        synchronized (MyClient.class) {
+            if (group == null) {
+                Random random = new Random();
+                int p = PrimePool.findSafePrime(random, 31);
+                group = new int[]{p, PrimePool.findGenerator(random, p)};
+            }
+            return group;
+        }
+    }
+
     /**
      * This function checks if a number is prime.
      *
@@ -135,15 +227,8 @@ public class MyClient implements Runnable {
     protected void setPrimes(String primes) {
         String[] numbers = primes.split(" ");
         try {
-            x = Integer.parseInt(numbers[0]);
-            g = Integer.parseInt(numbers[1]);
-            p = Integer.parseInt(numbers[2]);
-            ID = Integer.parseInt(numbers[3]);
-            y = powerModulo(1, g, b, p);
-            key = powerModulo(x, g, b, p);
-            if (socket != null) {
-                userThread.start();
-            }
+            setPrimes(Integer.parseInt(numbers[0]), Integer.parseInt(numbers[1]),
+                    Integer.parseInt(numbers[2]), Integer.parseInt(numbers[3]));
         } catch (Exception e) {
             System.err.println("Error while assigning primes");
             System.err.println(e);
@@ -151,9 +236,53 @@ public class MyClient implements Runnable {
 
     }
 
+    /**
+     * This function sets the values from which the key is calculated.
+     *
+     * @param x x value
+     * @param g g value
+     * @param p p value
+     * @param ID ID given by the server
+     */
+    protected void setPrimes(int x, int g, int p, int ID) {
+        this.x = x;
+        this.g = g;
+        this.p = p;
+        this.ID = ID;
+        y = powerModulo(1, g, b, p);
+        key = powerModulo(x, g, b, p);
+        if (socket != null) {
+            userThread.start();
+        }
+    }
+
+    /**
+     * This function sets the values from the greeting of a socket server.
+     *
+     * @param values x, g, p, ID and the flags of the server
+     */
+    protected void setGreeting(int[] values) {
+        binary = (values[4] & WireProtocol.BINARY) != 0;
+        setPrimes(values[0], values[1], values[2], values[3]);
+    }
+
+    /**
+     * @return True if the cipher comes in binary frames
+     */
+    protected boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return The key, once the values of the server are set
+     */
+    protected int getKey() {
+        return key;
+    }
+
     /**
      * This function is used to compute the modulo of a number multiplied by a
-     * factor, power number of times.
+     * factor, power number of times. The work is done by {@link ModMath}.
      * <p>
      * Example:
      * <blockquote><pre>
@@ -167,12 +296,7 @@ public class MyClient implements Runnable {
      * @return The result
      */
     public int powerModulo(int number, int factor, int power, int modulo) {
-        int solution = number % modulo;
-        for (int i = 1; i <= power; i++) {
-            solution = solution * factor;
-            solution = solution % modulo;
-        }
-        return solution;
+        return ModMath.powerModulo(number, factor, power, modulo);
     }
 
     /**
@@ -181,13 +305,19 @@ public class MyClient implements Runnable {
     @Override
     public void run() {
         try {
-            //First it sends the username.
-            out.writeUTF(userName);
-            out.flush();
-            //Then sends the y value
-            String toSend = Integer.toString(y);
-            out.writeUTF(toSend);
-            out.flush();
+            if (binary) {
+                //Name and y in one frame
+                WireProtocol.writeHello(out, userName, y);
+                out.flush();
+            } else {
+                //First it sends the username.
+                out.writeUTF(userName);
+                out.flush();
+                //Then sends the y value
+                String toSend = Integer.toString(y);
+                out.writeUTF(toSend);
+                out.flush();
+            }
         } catch (Exception e) {
             System.err.println("Problem while sending username or y value");
             System.err.println(e);
@@ -196,7 +326,8 @@ public class MyClient implements Runnable {
         //Then tryes to send get the next cipher from a queue.
         String newCipher = user.getNextCipher();
         //When the client receives the cipher it resolves it and then prints it.
-        String resolvedCipher = resolveCipher(newCipher);
+        //A binary one was deciphered while it was read.
+        String resolvedCipher = binary ? newCipher : resolveCipher(newCipher);
         System.out.println(resolvedCipher);
 
     }
@@ -212,23 +343,31 @@ public class MyClient implements Runnable {
     }
 
     /**
-     * This function deciphers a message. It can be improved by tweaking with
-     * the values a bit.
+     * This function deciphers a message. The work is done in place on one
+     * copy of the message by {@link Decipher}.
      *
      * @param message Message to decipher
      * @param key The key used for deciphering
      * @return The new dechipered text.
      */
     public String resolveCipher(String message, int key) {
-        String solved;
-        int shift = key % 8;
-        int subst = key % 26;
-        //Here, if we want to do this faster we can simply double the key and then apply the modulo on it.
-        //Because if we shift a chunk by 10 (5 two times) it's the same as shifting it just by just 2.
-        //But for the sake of simplicity and cw corectness I will keep it this way.
-        solved = uncrypt(message, shift, subst);
-        solved = uncrypt(solved, shift, subst);
-        return solved;
+        return resolveCipher(message, key, Decipher.ROUNDS);
+    }
+
+    /**
+     * This function deciphers a message made with any number of rounds. The
+     * rounds are composed into one pass, so more rounds cost nothing extra.
+     * Large messages are split over the cores by {@link ParallelDecipher}.
+     *
+     * @param message Message to decipher
+     * @param key The key used for deciphering
+     * @param rounds Number of rounds the message was made with
+     * @return The new dechipered text.
+     */
+    public String resolveCipher(String message, int key, int rounds) {
+        char[] solved = message.toCharArray();
+        int length = ParallelDecipher.resolve(solved, 0, solved.length, CompiledKey.of(key, rounds));
+        return new String(solved, 0, length);
     }
 
     /**
@@ -241,10 +380,13 @@ public class MyClient implements Runnable {
      * @return The new string
      */
     public String uncrypt(String message, int shift, int subst) {
-        String solution;
-        solution = substWord(message, subst);
-        solution = shiftWord(solution, shift);
-        return solution;
+        if (message.length() % 8 != 0 || message.length() < 8) {
+            return "";
+        }
+        char[] solution = message.toCharArray();
+        Decipher.substitute(solution, 0, solution.length, subst);
+        Decipher.shift(solution, 0, solution.length, shift);
+        return String.valueOf(solution);
     }
 
     /**
@@ -256,13 +398,9 @@ public class MyClient implements Runnable {
      * @return The new String
      */
     public String substWord(String message, int substAmount) {
-        String solution;
         char[] messageChar = message.toCharArray();
-        for (int i = 0; i < messageChar.length; i++) {
-            messageChar[i] = substChar(messageChar[i], substAmount);
-        }
-        solution = String.valueOf(messageChar);
-        return solution;
+        Decipher.substitute(messageChar, 0, messageChar.length, substAmount);
+        return String.valueOf(messageChar);
     }
 
     /**
@@ -297,14 +435,12 @@ public class MyClient implements Runnable {
      * @return The new shifted text
      */
     public String shiftWord(String message, int shiftAmount) {
-        String solution = "";
-        if (message.length() % 8 == 0 && message.length() >= 8) {
-            for (int i = 0; i <= message.length() - 8; i += 8) {
-                String currentChunk = message.substring(i, i + 8);
-                solution = solution.concat(shiftChunk(currentChunk, shiftAmount));
-            }
+        if (message.length() % 8 != 0 || message.length() < 8) {
+            return "";
         }
-        return solution;
+        char[] solution = message.toCharArray();
+        Decipher.shift(solution, 0, solution.length, shiftAmount);
+        return String.valueOf(solution);
     }
 
     /**
@@ -315,10 +451,9 @@ public class MyClient implements Runnable {
      * @return Shifted amount
      */
     public String shiftChunk(String chunk, int shiftAmount) {
-        String solution;
-        solution = chunk.substring(shiftAmount);
-        solution = solution.concat(chunk.substring(0, shiftAmount));
-        return solution;
+        char[] solution = chunk.toCharArray();
+        Decipher.rotate(solution, 0, solution.length, shiftAmount);
+        return String.valueOf(solution);
     }
 
     /**
@@ -342,7 +477,9 @@ public class MyClient implements Runnable {
     }
 
     /**
-     * Starts the client
+     * Starts the client. Default way to communicate: rmi. Set the client.mode
+     * property to socket to use the socket connection, or to inprocess to
+     * start the server in this process and call it directly.
      *
      * @param args
      */
@@ -364,11 +501,19 @@ public class MyClient implements Runnable {
         //Create the object
         MyClient client = new MyClient(host, username, port);
         //Choose what connection to go for
-        boolean rmi = true;
-        if (rmi == false) {
-            client.connectAndStart();
-        } else {
-            client.RMIServerConnect();
+        switch (System.getProperty("client.mode", "rmi")) {
+            case "socket":
+                client.connectAndStart();
+                break;
+            case "inprocess":
+                //The server runs next to the client, on the same port number
+                MyServer server = new MyServer(port);
+                server.startTransport(new InProcessTransport());
+                client.printCipher(InProcessTransport.lookup(port));
+                server.stopTransports();
+                break;
+            default:
+                client.RMIServerConnect();
         }
     }
 
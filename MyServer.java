@@ -1,13 +1,22 @@
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.file.Paths;
 import java.net.*;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * This is the main server class. It has 2 ways to communicate with the client.
@@ -17,32 +26,56 @@ import java.util.*;
  * <p>
  * Second is the classic socket connection. In this case, the serverCommunicator
  * acts as a thread until it resolves all the calls.
+ * <p>
+ * Third is the non-blocking socket connection. It speaks the same protocol as
+ * the second one, but a few {@link NioServer} event loops drive every client
+ * and the serverCommunicator is only used as storage, like in the RMI case.
+ * <p>
+ * Fourth is the in-process call, where a client in the same process calls
+ * this object directly. Each way is a {@link ServerTransport}.
  *
  */
-public class MyServer implements Runnable, ServerInterface {
+public class MyServer implements ServerInterface {
 
     /**
-     * This hashmap stores all the users by using an ID for each one and a
-     * server thread.
+     * This store keeps all the users by using an ID for each one, as a few
+     * numbers instead of an object. It is safe to use without holding any
+     * lock.
      */
-    private HashMap<Integer, ServerCommunicator> users = new HashMap<>();
+    private SessionStore users;
+    //The other servers of the cluster, null if this one runs alone
+    private ClusterNodes cluster;
     //Number of IDs and the current port on which the server resides
-    private int currentIDCount, port;
+    private int port;
     private String sotonServerName = "svm-tjn1f15-comp2207.ecs.soton.ac.uk";
 
-    //Those are used for the socket part
-    private ServerSocket thisServer;
-    private Thread serverThread;
-    //This is to store all possible prime numbers smaller than 1000.
-    //Never should 2 users have the same prime numbers.
-    private boolean ciur[] = new boolean[1000];
-    private Random random;
+    //Transports started, closed by stopTransports
+    private final List<ServerTransport> transports = new CopyOnWriteArrayList<>();
+    //When set, socket users run as tasks on it instead of on their own thread
+    private ExecutorService sessionExecutor;
+    //Safe primes filled in the background. Never should 2 users have the same prime numbers.
+    private PrimeAllocator primes;
+    //Primes small enough for the clients of the text handshake, which compute with ints
+    private PrimeAllocator legacyPrimes;
 
     /**
      * Those are used to get the rmi registry and the stud class
      */
     public CiphertextInterface serverInterface;
-    private Registry reg;
+    //Ciphers already received from the soton server
+    private CipherCache cipherCache;
+    //Calls to the soton server, isolated from the rest of the server
+    private UpstreamClient upstream;
+    //Limits of the long lived socket sessions
+    private int sessionRekeyAfter, sessionMaxInFlight;
+    private long idleTimeout;
+    //Removes the RMI users that did not finish their handshake in time
+    private TimerWheel expiry;
+    private long sessionTtl;
+    //Keeps the users of the store across restarts, null if not used
+    private SessionJournal journal;
+    //Latencies and counters, also seen over JMX
+    private final ServerMetrics metrics = new ServerMetrics(this);
 
     /**
      * Creates a new server and connects it to the University of Southampton
@@ -51,13 +84,7 @@ public class MyServer implements Runnable, ServerInterface {
      * @param port port for the server
      */
     public MyServer(int port) {
-        this.port = port;
-        thisServer = null;
-        serverThread = null;
-        random = new Random();
-        //Create ciur
-        makeCiur();
-        currentIDCount = 0;
+        this(port, null);
         try {
             //The the soton registy
             Registry registry = LocateRegistry.getRegistry(sotonServerName, 12345);
@@ -71,74 +98,208 @@ public class MyServer implements Runnable, ServerInterface {
     }
 
     /**
-     * Creates a ciur of prime numbers
+     * Creates a new server that gets its ciphers from the given provider
+     * instead of the University of Southampton server.
+     *
+     * @param port port for the server
+     * @param serverInterface provider of the ciphers
      */
-    public final void makeCiur() {
-        int limit = (int) Math.sqrt(ciur.length);
-        for (int i = 0; i < ciur.length; i++) {
-            ciur[i] = true;
+    public MyServer(int port, CiphertextInterface serverInterface) {
+        this.port = port;
+        this.serverInterface = serverInterface;
+        String nodes = System.getProperty("server.nodes");
+        if (nodes != null) {
+            cluster = new ClusterNodes(Integer.getInteger("server.node", 0), nodes.split(","));
+            users = new SessionStore(cluster.getNode(), cluster.size());
+        } else {
+            users = new SessionStore();
         }
-        ciur[0] = ciur[1] = false;
-        for (int i = 2; i <= limit; i++) {
-            for (int j = 1; j * i < ciur.length; j++) {
-                ciur[j * i] = false;
+        PrimeAllocator.Exhaustion exhaustion =
+                PrimeAllocator.Exhaustion.valueOf(System.getProperty("server.prime.exhausted", "WAIT"));
+        long primeWait = Long.getLong("server.prime.wait", 1000);
+        int bits = Integer.getInteger("server.prime.bits", 31);
+        int legacyBits = Integer.getInteger("server.prime.legacy.bits", 15);
+        PrimePool pool = new PrimePool(bits, Integer.getInteger("server.prime.pool", 1024));
+        pool.start();
+        primes = new PrimeAllocator(pool, exhaustion, primeWait);
+        if (legacyBits < bits) {
+            PrimePool legacyPool = new PrimePool(legacyBits, Integer.getInteger("server.prime.legacy.pool", 128));
+            legacyPool.start();
+            legacyPrimes = new PrimeAllocator(legacyPool, exhaustion, primeWait);
+        } else {
+            //The primes are small enough for everyone
+            legacyPrimes = primes;
+        }
+        cipherCache = new CipherCache(Integer.getInteger("server.cache.size", 4096),
+                Long.getLong("server.cache.ttl", 60000));
+        //The field is read on every call, so a replaced serverInterface is used too
+        upstream = new UpstreamClient((uid, key) -> {
+            long start = System.nanoTime();
+            try {
+                return serverInterface.get(uid, key);
+            } finally {
+                metrics.recordSince(ServerMetrics.UPSTREAM, start);
+            }
+        },
+                Integer.getInteger("server.upstream.threads", 16),
+                Integer.getInteger("server.upstream.queue", 256),
+                Long.getLong("server.upstream.timeout", 5000),
+                Integer.getInteger("server.upstream.failures", 5),
+                Long.getLong("server.upstream.cooldown", 10000));
+        sessionRekeyAfter = Integer.getInteger("server.session.rekey", 1000);
+        sessionMaxInFlight = Integer.getInteger("server.session.inflight", 64);
+        idleTimeout = Long.getLong("server.session.idle", 30000);
+        sessionTtl = Long.getLong("server.session.ttl", 60000);
+        //A tick of 100 ms and 1024 slots, one revolution is about 100 s
+        expiry = new TimerWheel(100, 1024, this::expireUser);
+        expiry.start();
+        String journalPath = System.getProperty("server.journal");
+        if (journalPath != null) {
+            openJournal(journalPath, Integer.getInteger("server.journal.size", 16 << 20));
+        }
+        registerMetrics();
+    }
+
+    /**
+     * Reloads the users kept by the journal of the last run, then journals
+     * the new ones. The restored users hold their primes again and get a new
+     * server.session.ttl to finish their handshake.
+     *
+     * @param path File of the journal
+     * @param size Size of the file when it is created
+     */
+    private void openJournal(String path, int size) {
+        try {
+            journal = new SessionJournal(Paths.get(path), size, users);
+            journal.load();
+            int[] maxID = {-1};
+            users.forEach((ID, p, x, lockedKey, name) -> {
+                allocatorOf(p).reserve(p);
+                maxID[0] = Math.max(maxID[0], ID);
+                expiry.schedule(ID, sessionTtl);
+            });
+            //Not in the visitor, it must not call the store
+            if (maxID[0] >= 0) {
+                users.reserveID(maxID[0]);
             }
+            //Drops the records of the users that are gone
+            journal.compact();
+        } catch (IOException e) {
+            System.err.println("Error while opening the session journal");
+            System.err.println(e);
+            journal = null;
+        }
+    }
+
+    /**
+     * Registers the metrics on the platform MBean server, so they can be read
+     * with jconsole or any JMX client.
+     */
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("ServerEncryption:type=ServerMetrics,port=" + port));
+        } catch (JMException e) {
+            System.err.println("Metrics could not be registered");
+            System.err.println(e);
         }
     }
 
     /**
-     * Get a random P for the key calculation
+     * Gets the latencies and counters of this server.
+     *
+     * @return The metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the number of users stored.
+     *
+     * @return The number of users
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Gets the other servers of the cluster.
+     *
+     * @return The cluster, or null if this server runs alone
+     */
+    public ClusterNodes getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Get a random P for the key calculation. It is reserved for the user
+     * until the user is removed, so no two live users have the same P.
      *
-     * @return random prime P
+     * @return random safe prime P
+     * @throws IllegalStateException If no prime is free
      */
     public int getRandomP() {
-        int p;
-        do {
-            p = random.nextInt(ciur.length - 1);
-        } while (ciur[p] == false);
-        ciur[p] = true;
-        return p;
+        return getRandomP(false);
     }
 
     /**
-     * Get a random G for the key calculation smaller than p.
+     * Get a random P for a user, like {@link #getRandomP()}. The first
+     * clients compute the key with an int product, so the users of the text
+     * handshake and of {@link #getPrimes(String)} get a P of at most
+     * server.prime.legacy.bits (15) bits. Only the clients that asked for the
+     * newer calls or frames get the wide ones.
+     *
+     * @param legacy True if the client may be one of the first ones
+     * @return random safe prime P
+     * @throws IllegalStateException If no prime is free
+     */
+    public int getRandomP(boolean legacy) {
+        return (legacy ? legacyPrimes : primes).acquire();
+    }
+
+    /**
+     * Gets the allocator that leased a P. The two sizes do not overlap.
+     */
+    private PrimeAllocator allocatorOf(int p) {
+        return p < 1 << legacyPrimes.getPool().getBits() ? legacyPrimes : primes;
+    }
+
+    /**
+     * Get a random G for the key calculation smaller than p. G is a generator
+     * of the whole group of p.
      *
      * @param p G should be smaller than p
      * @return return G
      */
     public int getRandomG(int p) {
-        int g;
-        do {
-            g = random.nextInt(p - 1);
-        } while (ciur[g] == false);
-        ciur[g] = true;
-        return g;
+        return PrimePool.findGenerator(ThreadLocalRandom.current(), p);
     }
 
     /**
-     * Start the socket communication
+     * Gets the allocator the P values come from, to read its metrics.
+     *
+     * @return The prime allocator
      */
-    public final void start() {
-        serverThread = new Thread(this);
-        serverThread.start();
+    public PrimeAllocator getPrimeAllocator() {
+        return primes;
+    }
 
+    /**
+     * Gets the allocator of the small P values of the text handshake.
+     *
+     * @return The allocator, the same as {@link #getPrimeAllocator()} when
+     * the primes are small enough for every client
+     */
+    public PrimeAllocator getLegacyPrimeAllocator() {
+        return legacyPrimes;
     }
 
     /**
-     * Run the server and wait for users to connect using socket communication
+     * @return Port the socket transports listen on
      */
-    @Override
-    public void run() {
-        while (serverThread != null) {
-            try {
-                //When a new user tries to connect we add it to the users hashmap
-                addUser(thisServer.accept());
-            } catch (IOException e) {
-                System.err.println("Problem with connection");
-                System.err.println(e);
-                serverThread = null;
-            }
-        }
+    public int getPort() {
+        return port;
     }
 
     /**
@@ -148,18 +309,41 @@ public class MyServer implements Runnable, ServerInterface {
      * @param userToAdd User socket to be added
      */
     public void addUser(Socket userToAdd) {
+        addUser(userToAdd, System.nanoTime());
+    }
+
+    private void addUser(Socket userToAdd, long accepted) {
         //Assign random values to the suer
         int p, g, a;
-        p = getRandomP();
+        try {
+            //The greeting goes out before the client tells what it speaks
+            p = getRandomP(true);
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            try {
+                userToAdd.close();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+            return;
+        }
         g = getRandomG(p);
-        a = random.nextInt(4096) + 4096;
-        int newID = currentIDCount++;
+        a = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        int newID = getNextAvailableID();
         //Add the user to the map
-        users.put(newID, new ServerCommunicator(this, userToAdd, p, g, a, newID));
+        ServerCommunicator st = new ServerCommunicator(this, userToAdd, p, g, a, newID);
+        metrics.recordSince(ServerMetrics.PARAMETERS, accepted);
+        st.setAccepted(accepted);
+        //The store only keeps the prime of a socket user, the thread keeps the rest
+        users.add(newID, p, st.getX(), null);
         try {
             //Set it's input and output and then start the thread
-            users.get(newID).setIO();
-            users.get(newID).start();
+            st.setIO();
+            if (sessionExecutor != null) {
+                sessionExecutor.execute(st);
+            } else {
+                st.start();
+            }
 
         } catch (IOException e) {
             System.err.println(e);
@@ -167,85 +351,204 @@ public class MyServer implements Runnable, ServerInterface {
     }
 
     /**
-     * This function adds an user for RMI communication.
+     * Makes the socket users run as tasks on a virtual thread per task
+     * executor, so idle users only cost a small heap object. On a Java version
+     * without virtual threads a cached pool of platform threads is used.
+     */
+    public void useVirtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            sessionExecutor = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available, using a thread pool");
+            sessionExecutor = Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * This function adds an user without a connection of its own, for the RMI
+     * calls or a multiplexed stream. Only p, x and the name are kept.
+     *
+     * @param name Name of the user
+     * @return x, g, p and the ID
+     * @throws IllegalStateException If no prime is free
+     */
+    public int[] openUser(String name) {
+        return openUser(name, false);
+    }
+
+    /**
+     * This function adds an user without a connection of its own, like
+     * {@link #openUser(String)}.
+     *
+     * @param name Name of the user
+     * @param legacy True to give it a P the first clients can use
+     * @return x, g, p and the ID
+     * @throws IllegalStateException If no prime is free
+     */
+    public int[] openUser(String name, boolean legacy) {
+        long start = System.nanoTime();
+        int p, g, a, x;
+        p = getRandomP(legacy);
+        g = getRandomG(p);
+        a = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        x = ModMath.powerModulo(1, g, a, p);
+        int ID = getNextAvailableID();
+        if (journal != null) {
+            //The journal changes the store itself, so a compaction can not come in between
+            journal.add(ID, p, x, name);
+        } else {
+            users.add(ID, p, x, name);
+        }
+        metrics.recordSince(ServerMetrics.PARAMETERS, start);
+        return new int[]{x, g, p, ID};
+    }
+
+    /**
+     * This function makes the key of an user added by
+     * {@link #openUser(String)} and keeps it with a lock.
+     *
+     * @param ID ID of the user
+     * @param y Y value from the user
+     * @param lock Lock of the key
+     * @return False if there is no user with this ID
+     */
+    public boolean keyUser(int ID, int y, int lock) {
+        long start = System.nanoTime();
+        long waited = journal != null ? journal.key(ID, y, lock) : users.setY(ID, y, lock);
+        if (waited < 0) {
+            return false;
+        }
+        metrics.record(ServerMetrics.Y_RECEIPT, waited * 1000);
+        metrics.recordSince(ServerMetrics.KEY_DERIVATION, start);
+        return true;
+    }
+
+    /**
+     * Gets the key of an user, unlocked with the lock it gives.
+     *
+     * @param ID ID of the user
+     * @param lock Lock to resolve the key
+     * @return True value of key
+     * @throws IllegalStateException If the user is gone or has no key
+     * @throws NumberFormatException If the lock is wrong
+     */
+    public int unlockUser(int ID, int lock) {
+        return users.unlock(ID, lock);
+    }
+
+    /**
+     * Gets the name of an user.
+     *
+     * @param ID ID of the user
+     * @return The name, or null if the user is gone
+     */
+    public String getUserName(int ID) {
+        return users.getName(ID);
+    }
+
+    /**
+     * This function adds an user served by the non-blocking event loops. The
+     * user only stores the values, the loops do the communication.
      *
-     * @param ID The ID of the user
+     * @return The new user
      */
-    public synchronized void addUserRMI(int ID) {
+    public ServerCommunicator addUserNio() {
+        long start = System.nanoTime();
         int p, g, a;
-        p = getRandomP();
+        p = getRandomP(true);
         g = getRandomG(p);
-        a = random.nextInt(4096) + 4096;
+        a = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        int ID = getNextAvailableID();
         ServerCommunicator st = new ServerCommunicator(this, ID, p, g, a);
-        users.put(ID, st);
+        metrics.recordSince(ServerMetrics.PARAMETERS, start);
+        users.add(ID, p, st.getX(), null);
+        return st;
     }
 
     /**
-     * Starts the server. Default way to communicate: rmi Change startRMI value
-     * to start socket communication.
+     * Starts the server. Default way to communicate: rmi. Set the server.mode
+     * property to socket, nio or inprocess to use another transport, or to a
+     * list such as rmi,nio to run several at once, see
+     * {@link ServerTransport#forName(String)}. For the socket transport
+     * server.sessions=virtual runs the users on virtual threads.
+     * <p>
+     * To run several servers as a cluster, give all of them the RMI registries
+     * of every node in server.nodes (host:port,host:port,...) and to each its
+     * own index in the list with server.node. A node creates its registry on
+     * its own port and forwards the calls about the users of the other nodes
+     * to them, so a client can use any node.
      *
      * @param args
      */
     public static void main(String args[]) {
         MyServer chatServer = new MyServer(1500);
-        boolean startRMI = true;
-        if (startRMI) {
-            chatServer.startRMI();
-        } else {
-            chatServer.startSocket();
+        if ("virtual".equals(System.getProperty("server.sessions"))) {
+            chatServer.useVirtualThreads();
+        }
+        for (String mode : System.getProperty("server.mode", "rmi").split(",")) {
+            chatServer.startTransport(ServerTransport.forName(mode.trim()));
         }
     }
 
     /**
-     * Starts the socket server.
+     * Starts a transport for this server.
+     *
+     * @param transport Transport to start
+     * @return True if it started
      */
-    public void startSocket() {
+    public boolean startTransport(ServerTransport transport) {
         try {
-
-            thisServer = new ServerSocket(port);
-            //System.out.println("Connection establieshed on port:" + port);
-            start();
+            transport.start(this);
+            transports.add(transport);
+            return true;
         } catch (IOException ex) {
-            System.err.println("Error while opening port");
+            System.err.println("Error while starting the " + transport.getName() + " transport");
             System.err.println(ex);
+            //Frees what it got before failing
+            transport.close();
+            return false;
         }
     }
 
     /**
-     * Starts the rmi server by creating a registry and exporthing this stud
-     * class on port 1500. Then binds them.
+     * Stops every transport started, so no new client gets in. The users
+     * already in are left alone.
      */
-    public void startRMI() {
-        
-        //First we set the new policyFile
-        String directory = System.getProperty("user.dir");
-        System.setProperty("java.security.policy", "file:policy.policy");
-        if (System.getSecurityManager() == null) {
-            System.setSecurityManager(new SecurityManager());
+    public void stopTransports() {
+        for (ServerTransport transport : transports) {
+            transport.close();
         }
+        transports.clear();
+    }
 
-        ServerInterface stub;
-        try {
-            stub = (ServerInterface) UnicastRemoteObject.exportObject(this, 1098);
-            try{
-                reg = LocateRegistry.getRegistry();
-            }catch (Exception e){
-                try{ reg = LocateRegistry.createRegistry(1099);
-                }catch (Exception ex){
-                    reg = LocateRegistry.getRegistry(1099);
-                }
-            }
-            
-            reg.rebind(" MyServer ", stub);
-        } catch (RemoteException e) {
-            System.err.println("Failed to register; is the rmiregistry running?");
-            System.err.println(e.getMessage());
+    /**
+     * Starts the socket server.
+     */
+    public void startSocket() {
+        startTransport(new SocketTransport());
+    }
 
-        }
+    /**
+     * Starts the non-blocking socket server.
+     *
+     * @param threads Number of event loops
+     */
+    public void startNio(int threads) {
+        startTransport(new NioTransport(threads));
+    }
+
+    /**
+     * Starts the rmi server by creating a registry and exporthing this stud
+     * class. Then binds them, see {@link RmiTransport}.
+     */
+    public void startRMI() {
+        startTransport(new RmiTransport());
     }
 
     /**
-     * Gets the cipher from the server.
+     * Gets the cipher from the server, or from the cache if this user already
+     * got one for an equivalent key.
      *
      * @param name Username
      * @param key key
@@ -254,7 +557,7 @@ public class MyServer implements Runnable, ServerInterface {
     public String getCipher(String name, int key) {
         String result = "";
         try {
-            result = serverInterface.get(name, key);
+            result = UpstreamClient.await(getCipherAsync(name, key));
         } catch (RemoteException e) {
             System.err.println("Problem while getting the cipher from server.");
             System.err.println(e);
@@ -262,14 +565,76 @@ public class MyServer implements Runnable, ServerInterface {
         return result;
     }
 
+    /**
+     * Gets the cipher without blocking. A slow or failing soton server only
+     * delays or fails this future, never the caller's thread.
+     *
+     * @param name Username
+     * @param key key
+     * @return The pending cipher
+     */
+    public CompletableFuture<String> getCipherAsync(String name, int key) {
+        return cipherCache.get(name, key, upstream::get);
+    }
+
+    /**
+     * Starts a long lived session on a socket user, with the limits set by
+     * the server.session.rekey and server.session.inflight properties.
+     *
+     * @param user The user of the connection
+     * @param sink Where the answers go
+     * @return The session
+     */
+    PipelinedSession openSession(ServerCommunicator user, FrameHandler.FrameSink sink) {
+        return new PipelinedSession(this, user, sink, sessionRekeyAfter, sessionMaxInFlight);
+    }
+
+    /**
+     * Starts a connection shared by many users, each on its own stream. At
+     * most server.session.inflight ciphers are fetched at once for it.
+     *
+     * @param sink Where the answers go
+     * @return The session
+     */
+    MultiplexedSession openMultiplexed(FrameHandler.FrameSink sink) {
+        return new MultiplexedSession(this, sink, sessionMaxInFlight);
+    }
+
+    /**
+     * Gets how long a socket connection may stay silent before it is closed,
+     * set by the server.session.idle property.
+     *
+     * @return The timeout in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Gets the client of the soton server, to read its metrics.
+     *
+     * @return The upstream client
+     */
+    public UpstreamClient getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Gets the cache in front of the soton server, to read its metrics.
+     *
+     * @return The cipher cache
+     */
+    public CipherCache getCipherCache() {
+        return cipherCache;
+    }
+
     /**
      * Gets the next available ID to give to a client.
      *
      * @return nextID
      */
     public int getNextAvailableID() {
-        int nextID = currentIDCount++;
-        return nextID;
+        return users.nextID();
     }
 
     /**
@@ -300,10 +665,49 @@ public class MyServer implements Runnable, ServerInterface {
      * @throws RemoteException
      */
     @Override
-    public synchronized String getPrimes(String name) throws RemoteException {
-        int newID = getNextAvailableID();
-        addUserRMI(newID);
-        return users.get(newID).getPrimes(name) + " " + Integer.toString(newID);
+    public String getPrimes(String name) throws RemoteException {
+        int[] group = openExpiringUser(name, true);
+        return Integer.toString(group[0]) + " " + Integer.toString(group[1]) + " " + Integer.toString(group[2])
+                + " " + Integer.toString(group[3]);
+    }
+
+    /**
+     * This function creates a new user like {@link #getPrimes(String)}, but
+     * gives its values as numbers.
+     *
+     * @param name Name of the user
+     * @return x, g, p and the ID
+     * @throws RemoteException
+     */
+    @Override
+    public int[] getGroup(String name) throws RemoteException {
+        return openExpiringUser(name, false);
+    }
+
+    /**
+     * This function adds an user for the RMI calls, which is removed after
+     * server.session.ttl milliseconds if it did not get its cipher by then.
+     *
+     * @param name Name of the user
+     * @param legacy True to give it a P the first clients can use
+     * @return x, g, p and the ID
+     */
+    private int[] openExpiringUser(String name, boolean legacy) {
+        int[] group = openUser(name, legacy);
+        expiry.schedule(group[3], sessionTtl);
+        return group;
+    }
+
+    /**
+     * Called by the timer wheel when the time of an RMI user is over. Users
+     * that got their cipher are already gone.
+     *
+     * @param ID User to remove
+     */
+    private void expireUser(int ID) {
+        if (removeUser(ID)) {
+            metrics.sessionExpired();
+        }
     }
 
     /**
@@ -316,10 +720,35 @@ public class MyServer implements Runnable, ServerInterface {
      * @throws RemoteException
      */
     @Override
-    public synchronized void setY(String response, int lock, int ID) throws RemoteException {
-        if (users.containsKey(ID)) {
-            users.get(ID).setY(response, lock);
+    public void setY(String response, int lock, int ID) throws RemoteException {
+        if (cluster != null && !cluster.isLocal(ID)) {
+            cluster.forward(ID, owner -> {
+                owner.setY(response, lock, ID);
+                return null;
+            });
+            return;
         }
+        keyUser(ID, Integer.parseInt(response), lock);
+    }
+
+    /**
+     * Binary version of {@link #setY(String, int, int)}.
+     *
+     * @param y Y value from client
+     * @param lock Lock to lock the key
+     * @param ID ID of user
+     * @throws RemoteException
+     */
+    @Override
+    public void setY(int y, int lock, int ID) throws RemoteException {
+        if (cluster != null && !cluster.isLocal(ID)) {
+            cluster.forward(ID, owner -> {
+                owner.setY(y, lock, ID);
+                return null;
+            });
+            return;
+        }
+        keyUser(ID, y, lock);
     }
 
     /**
@@ -333,26 +762,70 @@ public class MyServer implements Runnable, ServerInterface {
      * @throws RemoteException
      */
     @Override
-    public synchronized String getCipher(int lock, int ID) throws RemoteException {
-        if (users.containsKey(ID)) {
-            int key = unlockKey(users.get(ID).getKey(), lock);
-            String name = users.get(ID).name;
-            return serverInterface.get(name, key);
+    public String getCipher(int lock, int ID) throws RemoteException {
+        if (cluster != null && !cluster.isLocal(ID)) {
+            return cluster.forward(ID, owner -> owner.getCipher(lock, ID));
+        }
+        String name = users.getName(ID);
+        if (name != null) {
+            int key = users.unlock(ID, lock);
+            //No lock is held here, so a slow upstream only delays this user
+            String cipher = UpstreamClient.await(getCipherAsync(name, key));
+            //The handshake is over, free the prime for the next user
+            removeUser(ID);
+            return cipher;
         } else {
             return "WRONGIDZ";
         }
     }
 
     /**
-     * Removes the user and makes it's values free.
+     * Does the whole exchange in one call. The group comes from the user, so
+     * no prime is taken from the pool and no user is stored: the key is made,
+     * used to get the cipher and forgotten.
+     *
+     * @param name Name of the user
+     * @param p Safe prime picked by the user
+     * @param g Generator of the group of p
+     * @param y Public value of the user
+     * @return x and the cipher
+     * @throws RemoteException If the group or y is not valid, or the cipher
+     * can not be got
+     */
+    @Override
+    public HandshakeResult exchange(String name, int p, int g, int y) throws RemoteException {
+        if (!PrimePool.isGroup(p, g) || y < 1 || y >= p) {
+            throw new RemoteException("Invalid group or public value");
+        }
+        int a = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        //Same key as a stored user gets, see ServerCommunicator
+        int key = ModMath.powerModulo(y, g, a, p);
+        return new HandshakeResult(ModMath.powerModulo(1, g, a, p), UpstreamClient.await(getCipherAsync(name, key)));
+    }
+
+    /**
+     * Removes the user and makes it's prime free.
      *
      * @param ID User to be delited
+     * @return True if the user was there
+     */
+    protected boolean removeUser(int ID) {
+        int p = journal != null ? journal.remove(ID) : users.remove(ID);
+        if (p != 0) {
+            allocatorOf(p).release(p);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of RMI users whose time is not over yet, including the
+     * ones already removed.
+     *
+     * @return The number of timers
      */
-    protected synchronized void removeUser(int ID) {
-        ServerCommunicator toRemove = users.get(ID);
-        ciur[toRemove.getP()] = true;
-        ciur[toRemove.getG()] = true;
-        users.remove(ID);
+    public int getPendingExpiries() {
+        return expiry.getPending();
     }
 
 }
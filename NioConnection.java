@@ -0,0 +1,362 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * State machine for one non-blocking socket client. It walks through the same
+ * steps as {@link ServerCommunicator#run()}: send x g p ID, read the name, read
+ * y and then send the cipher. Legacy clients get the writeUTF framing (two
+ * bytes of length followed by modified UTF-8) and binary clients the frames of
+ * {@link WireProtocol}, sent one at a time as the channel takes them. A binary
+ * client that opens a session is then handed to a {@link PipelinedSession},
+ * and one that multiplexes users to a {@link MultiplexedSession}, and the
+ * connection stays open for its requests.
+ * <p>
+ * Every method runs on the owning event loop. The ciphers are requested
+ * without blocking and their results are posted back to the loop.
+ */
+class NioConnection {
+
+    private enum State {
+        GREETING, NAME, RESPONSE, FETCHING, CIPHER, SESSION, CLOSED
+    }
+
+    private final MyServer server;
+    private final SocketChannel channel;
+    private final Executor loop;
+    private final ServerCommunicator session;
+    private SelectionKey key;
+    private State state;
+    private ByteBuffer in = ByteBuffer.allocate(256);
+    private ByteBuffer out;
+    private boolean binary;
+    private WireProtocol.CipherWriter frames;
+    //Answers of a session waiting for the channel, in the order they arrived
+    private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+    private FrameHandler pipeline;
+    private long lastActive = System.nanoTime();
+    //When the cipher started being written
+    private long writeStart;
+
+    /**
+     * Creates the connection and the user behind it.
+     *
+     * @param server Server reference
+     * @param channel Accepted channel, already non-blocking
+     * @param loop Event loop owning the channel
+     */
+    NioConnection(MyServer server, SocketChannel channel, Executor loop) {
+        this.server = server;
+        this.channel = channel;
+        this.loop = loop;
+        long accepted = System.nanoTime();
+        session = server.addUserNio();
+        session.setAccepted(accepted);
+        server.getMetrics().sessionOpened();
+    }
+
+    /**
+     * Registers the channel on the loop selector and sends the primes.
+     *
+     * @param selector Selector of the owning loop
+     */
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, 0, this);
+            send(session.getGreeting(), State.GREETING);
+        } catch (IOException e) {
+            System.err.println("Error in printing the msg");
+            close();
+        }
+    }
+
+    /**
+     * Called by the loop when the channel is readable or writable.
+     *
+     * @param readyKey Selected key
+     */
+    void onReady(SelectionKey readyKey) {
+        lastActive = System.nanoTime();
+        try {
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                write();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            close();
+        }
+    }
+
+    /**
+     * Called by the loop from time to time. Closes the connection if nothing
+     * came or went for longer than the idle timeout while nothing was in
+     * flight.
+     *
+     * @param now Current System.nanoTime()
+     */
+    void checkIdle(long now) {
+        long timeout = server.getIdleTimeout();
+        if (timeout <= 0 || state == State.FETCHING || (pipeline != null && pipeline.getInFlight() > 0)) {
+            return;
+        }
+        if (now - lastActive > timeout * 1000000L) {
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            close();
+            return;
+        }
+        if (state == State.SESSION) {
+            readSession();
+            return;
+        }
+        if (state == State.NAME && in.position() >= 2 && (in.getShort(0) & 0xFFFF) == WireProtocol.MARKER) {
+            //A binary client sends the marker where a legacy one sends the length of its name
+            binary = true;
+            WireProtocol.Frame frame = WireProtocol.decodeFrame(in, 2, WireProtocol.MAX_FRAME);
+            if (frame == null) {
+                growInput(WireProtocol.MAX_FRAME + 8);
+                return;
+            }
+            if (frame.type == WireProtocol.SESSION) {
+                state = State.SESSION;
+                PipelinedSession pipelined = server.openSession(session, answer -> loop.execute(() -> sendFrame(answer)));
+                pipeline = pipelined;
+                pipelined.open(frame.getHello(), server.getIdleTimeout());
+                readSession();
+            } else if (frame.type == WireProtocol.MULTIPLEX) {
+                //The users come in streams, the one of the greeting is not needed
+                state = State.SESSION;
+                server.removeUser(session.getID());
+                pipeline = server.openMultiplexed(answer -> loop.execute(() -> sendFrame(answer)));
+                readSession();
+            } else if (frame.type == WireProtocol.HELLO) {
+                WireProtocol.Hello hello = frame.getHello();
+                session.name = hello.name;
+                fetchCipher(session.deriveKey(hello.y));
+            } else {
+                throw new IOException("Bad hello frame");
+            }
+            return;
+        }
+        String message;
+        while (state != State.CLOSED && state != State.FETCHING && (message = nextMessage()) != null) {
+            if (state == State.NAME) {
+                session.name = message;
+                state = State.RESPONSE;
+            } else if (state == State.RESPONSE) {
+                fetchCipher(session.deriveKey(message));
+            }
+        }
+    }
+
+    /**
+     * Hands every whole frame to the session, until it has too many requests
+     * in flight.
+     */
+    private void readSession() throws IOException {
+        WireProtocol.Frame frame;
+        while (state == State.SESSION && !pipeline.isFull()
+                && (frame = WireProtocol.decodeFrame(in, 0, WireProtocol.MAX_FRAME)) != null) {
+            pipeline.onFrame(frame);
+        }
+        if (state == State.SESSION) {
+            growInput(WireProtocol.MAX_FRAME + 8);
+            updateInterest();
+        }
+    }
+
+    private void fetchCipher(int cipherKey) {
+        state = State.FETCHING;
+        key.interestOps(0);
+        server.getCipherAsync(session.name, cipherKey).whenComplete((cipher, error) -> {
+            if (error != null) {
+                //Same answer as the blocking path gives on an upstream problem
+                System.err.println("Problem while getting the cipher from server.");
+                System.err.println(error);
+                cipher = "";
+            }
+            String toSend = cipher;
+            loop.execute(() -> sendCipher(toSend));
+        });
+    }
+
+    /**
+     * Makes the input buffer larger once it is full, up to a limit.
+     *
+     * @param limit Largest size of the buffer
+     * @throws IOException If the buffer is full at the limit
+     */
+    private void growInput(int limit) throws IOException {
+        if (in.hasRemaining()) {
+            return;
+        }
+        if (in.capacity() >= limit) {
+            throw new IOException("Message too long");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(limit, in.capacity() * 2));
+        in.flip();
+        bigger.put(in);
+        in = bigger;
+    }
+
+    /**
+     * Takes one writeUTF message out of the input buffer.
+     *
+     * @return The message, or null if it did not fully arrive yet
+     * @throws IOException If the message is not valid modified UTF-8
+     */
+    private String nextMessage() throws IOException {
+        if (in.position() < 2) {
+            return null;
+        }
+        int length = 2 + (in.getShort(0) & 0xFFFF);
+        if (in.position() < length) {
+            if (in.capacity() < length) {
+                //The message is longer than the buffer, make room for all of it
+                ByteBuffer bigger = ByteBuffer.allocate(length);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.flip();
+        in.get(frame);
+        in.compact();
+        return new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+    }
+
+    private void sendCipher(String cipher) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        writeStart = System.nanoTime();
+        try {
+            if (binary) {
+                frames = new WireProtocol.CipherWriter(cipher);
+                out = ByteBuffer.allocate(WireProtocol.CipherWriter.FRAME_SIZE);
+                frames.next(out);
+                state = State.CIPHER;
+                write();
+            } else {
+                send(cipher, State.CIPHER);
+            }
+        } catch (IOException e) {
+            System.err.println("Error in printing the msg");
+            close();
+        }
+    }
+
+    /**
+     * Queues an answer of the session and sends what the channel takes.
+     *
+     * @param frame The answer
+     */
+    private void sendFrame(ByteBuffer frame) {
+        if (state != State.SESSION) {
+            return;
+        }
+        queued.add(frame);
+        try {
+            if (out == null) {
+                long start = System.nanoTime();
+                write();
+                server.getMetrics().recordSince(ServerMetrics.RESPONSE_WRITE, start);
+            }
+            //An answer may have made room for more requests
+            readSession();
+        } catch (IOException e) {
+            System.err.println("Error in printing the msg");
+            close();
+        }
+    }
+
+    private void send(String message, State next) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        new DataOutputStream(bytes).writeUTF(message);
+        out = ByteBuffer.wrap(bytes.toByteArray());
+        state = next;
+        write();
+    }
+
+    private void write() throws IOException {
+        while (true) {
+            if (out == null) {
+                out = queued.poll();
+                if (out == null) {
+                    break;
+                }
+            }
+            channel.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            //The next frame of a binary cipher is only encoded once the last one is gone
+            if (frames == null || !frames.next(out)) {
+                out = null;
+                frames = null;
+            }
+        }
+        lastActive = System.nanoTime();
+        if (state == State.GREETING) {
+            state = State.NAME;
+            session.markGreeted();
+            key.interestOps(SelectionKey.OP_READ);
+        } else if (state == State.CIPHER) {
+            server.getMetrics().recordSince(ServerMetrics.RESPONSE_WRITE, writeStart);
+            close();
+        } else if (state == State.SESSION) {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Reads while the session has room for requests, writes while answers
+     * are waiting.
+     */
+    private void updateInterest() {
+        if (key.isValid()) {
+            key.interestOps((pipeline.isFull() ? 0 : SelectionKey.OP_READ) | (out != null ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * Closes the channel and removes the user.
+     */
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        server.removeUser(session.getID());
+        server.getMetrics().sessionClosed();
+    }
+}
@@ -0,0 +1,211 @@
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking socket server. One acceptor thread hands the new connections
+ * round robin to a few selector loops, by default one for each core. Every
+ * connection is then driven by a {@link NioConnection} state machine, so no
+ * thread is held while a client is computing its y.
+ * <p>
+ * The cipher is requested with {@link MyServer#getCipherAsync}, so a slow
+ * upstream server never blocks a loop. Every loop wakes up at least once a
+ * second to close the connections that stayed idle for too long.
+ */
+public class NioServer {
+
+    //Pause after a failed accept, it fails again at once while no file descriptor is free
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final MyServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private volatile boolean running;
+    private int nextLoop;
+
+    /**
+     * Creates the event loops without opening the port.
+     *
+     * @param server Server that owns the users
+     * @param port Port to listen on
+     * @param threads Number of selector loops
+     * @throws IOException If a selector can not be opened
+     */
+    public NioServer(MyServer server, int port, int threads) throws IOException {
+        this.server = server;
+        this.port = port;
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        nextLoop = 0;
+    }
+
+    /**
+     * Opens the port and starts the acceptor and the loops.
+     *
+     * @throws IOException If the port can not be opened
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        acceptThread = new Thread(this::accept, "nio-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Accepts connections until the server is stopped.
+     */
+    private void accept() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioConnection connection;
+                try {
+                    connection = new NioConnection(server, channel, loop);
+                } catch (IllegalStateException e) {
+                    //No prime is free for this user
+                    System.err.println(e.getMessage());
+                    channel.close();
+                    continue;
+                }
+                loop.execute(() -> connection.register(loop.selector));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Problem with connection");
+                    System.err.println(e);
+                    backOff();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits a little after a failed accept, so an error that lasts does not
+     * keep the acceptor spinning.
+     */
+    private static void backOff() {
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the port and stops every loop.
+     */
+    public void stop() {
+        running = false;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A selector thread. Other threads never touch its keys directly, they
+     * post tasks that are run between two selects.
+     */
+    private class EventLoop extends Thread implements Executor {
+
+        private static final long IDLE_CHECK_MILLIS = 1000;
+
+        private final Selector selector;
+        private long lastIdleCheck = System.nanoTime();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(IDLE_CHECK_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("Problem in a task of the event loop");
+                            System.err.println(e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            connection.onReady(key);
+                        } catch (RuntimeException e) {
+                            //Only this connection is lost, not the others of the loop
+                            System.err.println("Problem with connection");
+                            System.err.println(e);
+                            connection.close();
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck > IDLE_CHECK_MILLIS * 1000000L) {
+                        lastIdleCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ((NioConnection) key.attachment()).checkIdle(now);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Problem in the event loop");
+                    System.err.println(e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+}
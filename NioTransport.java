@@ -0,0 +1,41 @@
+
+import java.io.IOException;
+
+/**
+ * Non-blocking socket transport. It speaks the same protocol as
+ * {@link SocketTransport}, but a few {@link NioServer} event loops drive
+ * every client.
+ */
+public class NioTransport implements ServerTransport {
+
+    private final int threads;
+    private NioServer nioServer;
+
+    /**
+     * Creates the transport.
+     *
+     * @param threads Number of event loops
+     */
+    public NioTransport(int threads) {
+        this.threads = threads;
+    }
+
+    @Override
+    public String getName() {
+        return "nio";
+    }
+
+    @Override
+    public void start(MyServer server) throws IOException {
+        nioServer = new NioServer(server, server.getPort(), threads);
+        nioServer.start();
+    }
+
+    @Override
+    public void close() {
+        //Not started, or the event loops could not be made
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Deciphers large messages in place on a {@link ForkJoinPool}. Every chunk of
+ * 8 is deciphered on its own, so the message is split into ranges of whole
+ * chunks and each range is given to {@link Decipher}.
+ * <p>
+ * Below twice the threshold, when it can not be split into two ranges, the
+ * message is deciphered on the calling thread, since handing it to the pool
+ * would cost more than the work. Above it the ranges are sized so every
+ * worker of the pool gets a few of them, which keeps the workers busy when
+ * some finish early, but never smaller than the threshold.
+ */
+public final class ParallelDecipher {
+
+    /**
+     * Smallest range handed to a worker. A message shorter than twice this
+     * is deciphered on the calling thread.
+     */
+    public static final int THRESHOLD = 65536;
+
+    private ParallelDecipher() {
+    }
+
+    /**
+     * Deciphers a message in place on the common pool.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(char[] buffer, int offset, int length, CompiledKey key) {
+        return resolve(ForkJoinPool.commonPool(), buffer, offset, length, key);
+    }
+
+    /**
+     * Deciphers a message in place on a pool.
+     *
+     * @param pool Pool to run on
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(ForkJoinPool pool, char[] buffer, int offset, int length, CompiledKey key) {
+        if (length < 2 * THRESHOLD || length % 8 != 0 || pool.getParallelism() < 2) {
+            return Decipher.resolve(buffer, offset, length, key);
+        }
+        pool.invoke(new Range(buffer, null, offset, offset + length, key, grain(pool, length)));
+        return length;
+    }
+
+    /**
+     * Deciphers a single byte encoded message in place on the common pool.
+     *
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(byte[] buffer, int offset, int length, CompiledKey key) {
+        return resolve(ForkJoinPool.commonPool(), buffer, offset, length, key);
+    }
+
+    /**
+     * Deciphers a single byte encoded message in place on a pool.
+     *
+     * @param pool Pool to run on
+     * @param buffer Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param key Compiled key
+     * @return Length of the deciphered message, 0 or length
+     */
+    public static int resolve(ForkJoinPool pool, byte[] buffer, int offset, int length, CompiledKey key) {
+        if (length < 2 * THRESHOLD || length % 8 != 0 || pool.getParallelism() < 2) {
+            return Decipher.resolve(buffer, offset, length, key);
+        }
+        pool.invoke(new Range(null, buffer, offset, offset + length, key, grain(pool, length)));
+        return length;
+    }
+
+    /**
+     * Size of the ranges done without splitting: about four per worker, a
+     * multiple of 8 and at least the threshold.
+     */
+    private static int grain(ForkJoinPool pool, int length) {
+        int grain = length / (pool.getParallelism() * 4);
+        return Math.max(THRESHOLD, grain & ~7);
+    }
+
+    /**
+     * A range of whole chunks, split in two halves until it is small enough.
+     */
+    private static final class Range extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final char[] chars;
+        private final byte[] bytes;
+        private final int from, to, grain;
+        private final CompiledKey key;
+
+        Range(char[] chars, byte[] bytes, int from, int to, CompiledKey key, int grain) {
+            this.chars = chars;
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+            this.key = key;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                if (chars != null) {
+                    Decipher.resolve(chars, from, to - from, key);
+                } else {
+                    Decipher.resolve(bytes, from, to - from, key);
+                }
+                return;
+            }
+            //The middle is rounded down to a whole chunk
+            int middle = from + ((to - from) / 2 & ~7);
+            invokeAll(new Range(chars, bytes, from, middle, key, grain),
+                    new Range(chars, bytes, middle, to, key, grain));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Server side of a long lived session of {@link WireProtocol}. After one key
+ * exchange the client sends many requests without waiting, and each one is
+ * answered as soon as its cipher arrives from upstream, in any order.
+ * <p>
+ * The session does not touch the connection itself, so the blocking and the
+ * non-blocking servers both use it, as a {@link FrameHandler}.
+ */
+class PipelinedSession implements FrameHandler {
+
+    private final MyServer server;
+    private final ServerCommunicator user;
+    private final FrameSink sink;
+    private final int rekeyAfter, maxInFlight;
+    //Only used by the thread giving the frames
+    private int key, sinceRekey;
+    //Guarded by this, also changed by the upstream threads
+    private int inFlight;
+
+    /**
+     * Creates the session.
+     *
+     * @param server Server that gets the ciphers
+     * @param user User of the connection, holding the values of the exchange
+     * @param sink Where the answers go
+     * @param rekeyAfter Requests allowed with one key
+     * @param maxInFlight Requests waiting for upstream before the transport
+     * stops reading
+     */
+    PipelinedSession(MyServer server, ServerCommunicator user, FrameSink sink, int rekeyAfter, int maxInFlight) {
+        this.server = server;
+        this.user = user;
+        this.sink = sink;
+        this.rekeyAfter = rekeyAfter;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Starts the session with the SESSION frame and answers READY.
+     *
+     * @param hello Name and y of the client
+     * @param idleTimeout Milliseconds of silence after which the transport
+     * closes the connection, sent to the client
+     */
+    void open(WireProtocol.Hello hello, long idleTimeout) {
+        user.name = hello.name;
+        key = user.deriveKey(hello.y);
+        sink.send(WireProtocol.varintFrame(WireProtocol.READY, rekeyAfter, (int) Math.min(Integer.MAX_VALUE, idleTimeout)));
+    }
+
+    @Override
+    public void onFrame(WireProtocol.Frame frame) throws IOException {
+        if (frame.type == WireProtocol.REQUEST) {
+            request(WireProtocol.getVarint(frame.getPayload()));
+        } else if (frame.type == WireProtocol.REKEY && frame.payload.length == 4) {
+            int x = user.rekey();
+            key = user.deriveKey(frame.getPayload().getInt());
+            sinceRekey = 0;
+            sink.send(WireProtocol.intFrame(WireProtocol.REKEYED, x));
+        } else {
+            throw new IOException("Unexpected frame " + frame.type);
+        }
+    }
+
+    private void request(int id) {
+        if (sinceRekey >= rekeyAfter) {
+            sink.send(WireProtocol.textFrame(WireProtocol.ERROR, id, "Rekey required"));
+            return;
+        }
+        sinceRekey++;
+        synchronized (this) {
+            inFlight++;
+        }
+        server.getCipherAsync(user.name, key).whenComplete((cipher, error) -> {
+            //Freed first, so the transport sees the room when it sends the answer
+            synchronized (this) {
+                inFlight--;
+                notifyAll();
+            }
+            if (error != null) {
+                sink.send(WireProtocol.textFrame(WireProtocol.ERROR, id, "Upstream failed"));
+            } else {
+                sink.send(WireProtocol.textFrame(WireProtocol.RESPONSE, id, cipher));
+            }
+        });
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized boolean isFull() {
+        return inFlight >= maxInFlight;
+    }
+
+    @Override
+    public synchronized void awaitCapacity() throws InterruptedIOException {
+        while (inFlight >= maxInFlight) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        //The user of the connection is removed by the transport
+    }
+}
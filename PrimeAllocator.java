@@ -0,0 +1,151 @@
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out primes so that no two live users ever share the same p, and with
+ * it the same (p, g) pair. Released primes go to a lock-free free list and are
+ * reused before fresh ones are taken from the {@link PrimePool}.
+ * <p>
+ * Acquire and release are O(1) and need no lock of the server, so the RMI and
+ * the socket paths can both call them at the same time.
+ */
+public class PrimeAllocator {
+
+    /**
+     * What acquire does when there is no free prime.
+     */
+    public enum Exhaustion {
+        /**
+         * Wait up to the configured time for the generator, then fail.
+         */
+        WAIT,
+        /**
+         * Fail at once.
+         */
+        FAIL
+    }
+
+    private final PrimePool pool;
+    private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<>();
+    //Size of the free list, kept apart because counting the queue is O(n)
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final Set<Integer> leased = ConcurrentHashMap.newKeySet();
+    private final Exhaustion policy;
+    private final long waitMillis;
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Creates the allocator on top of a started pool.
+     *
+     * @param pool Source of fresh primes
+     * @param policy What to do when no prime is free
+     * @param waitMillis How long WAIT waits for the generator
+     */
+    public PrimeAllocator(PrimePool pool, Exhaustion policy, long waitMillis) {
+        this.pool = pool;
+        this.policy = policy;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Reserves a prime that no other live user holds.
+     *
+     * @return The reserved prime
+     * @throws IllegalStateException If no prime is free, according to the policy
+     */
+    public int acquire() {
+        long deadline = System.nanoTime() + (policy == Exhaustion.WAIT ? waitMillis * 1000000L : 0);
+        while (true) {
+            Integer p = free.poll();
+            if (p == null) {
+                p = takeFresh();
+            } else {
+                freeCount.decrementAndGet();
+            }
+            //A fresh prime can equal one that is still leased, then we simply skip it
+            if (leased.add(p)) {
+                return p;
+            }
+            //Small primes are few, they may all be leased
+            if (System.nanoTime() - deadline > 0) {
+                exhausted.incrementAndGet();
+                throw new IllegalStateException("No free prime for a new user");
+            }
+        }
+    }
+
+    private Integer takeFresh() {
+        Integer p;
+        try {
+            if (policy == Exhaustion.WAIT) {
+                p = pool.poll(waitMillis, TimeUnit.MILLISECONDS);
+            } else {
+                p = pool.poll(0, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p = null;
+        }
+        if (p == null) {
+            exhausted.incrementAndGet();
+            throw new IllegalStateException("No free prime for a new user");
+        }
+        return p;
+    }
+
+    /**
+     * Marks a prime as held, for a user restored from a journal.
+     *
+     * @param p The prime of the user
+     * @return False if it was already held
+     */
+    public boolean reserve(int p) {
+        return leased.add(p);
+    }
+
+    /**
+     * Gives back a prime. Releasing a prime that is not leased does nothing,
+     * so a user can safely be removed twice.
+     *
+     * @param p The prime to release
+     */
+    public void release(int p) {
+        if (leased.remove(p)) {
+            free.offer(p);
+            freeCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The pool fresh primes come from
+     */
+    public PrimePool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return Number of primes held by live users
+     */
+    public int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return Number of released primes waiting to be reused
+     */
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+
+    /**
+     * @return Number of times acquire failed because no prime was free
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
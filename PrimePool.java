@@ -0,0 +1,179 @@
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of safe primes (p = 2q + 1 with q prime) filled by a background
+ * thread, so that handing a p to a new user never searches for primes.
+ * <p>
+ * Everything on the wire is an int, so the primes are at most 31 bits long.
+ * The first clients compute the key with an int product, which overflows
+ * above p = 46340, so the users of the text handshake get primes of at most
+ * 15 bits from a pool of their own (see {@link MyServer#getRandomP(boolean)}).
+ * A safe prime makes every g that is not of order 1 or 2 a generator of the
+ * whole group, which keeps the search for g cheap too.
+ */
+public class PrimePool implements Runnable {
+
+    private final ArrayBlockingQueue<Integer> pool;
+    private final int bits;
+    private final Random random;
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private Thread generator;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bits Size of the primes, between 3 and 31
+     * @param capacity Maximum number of primes kept ready
+     */
+    public PrimePool(int bits, int capacity) {
+        if (bits < 3 || bits > 31) {
+            throw new IllegalArgumentException("Prime size must be between 3 and 31 bits");
+        }
+        this.bits = bits;
+        pool = new ArrayBlockingQueue<>(capacity);
+        random = new Random();
+    }
+
+    /**
+     * Starts the background generator.
+     */
+    public void start() {
+        generator = new Thread(this, "prime-pool");
+        generator.setDaemon(true);
+        generator.start();
+    }
+
+    /**
+     * Generates primes until the pool is full, then waits for room.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                int p = findSafePrime(random, bits);
+                busyNanos.addAndGet(System.nanoTime() - start);
+                generated.incrementAndGet();
+                pool.put(p);
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        }
+    }
+
+    /**
+     * Takes a prime out of the pool, waiting for the generator if it is empty.
+     *
+     * @param timeout How long to wait
+     * @param unit Unit of timeout
+     * @return A safe prime, or null if none was made in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Integer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Integer p = pool.poll(timeout, unit);
+        if (p != null) {
+            taken.incrementAndGet();
+        }
+        return p;
+    }
+
+    /**
+     * Searches a random safe prime.
+     *
+     * @param random Random source
+     * @param bits Size of the prime
+     * @return A safe prime with exactly bits bits
+     */
+    public static int findSafePrime(Random random, int bits) {
+        int high = 1 << (bits - 2);
+        while (true) {
+            //q has its top bit set, so p = 2q + 1 has exactly bits bits
+            int q = high | random.nextInt(high) | 1;
+            if (ModMath.isPrime(q) && ModMath.isPrime(2 * q + 1)) {
+                return 2 * q + 1;
+            }
+        }
+    }
+
+    /**
+     * Picks a random generator of the group of a safe prime. Half of the
+     * values are generators, so only a couple of tries are needed.
+     *
+     * @param random Random source
+     * @param p Safe prime
+     * @return A generator smaller than p
+     */
+    public static int findGenerator(Random random, int p) {
+        int q = (p - 1) / 2;
+        while (true) {
+            int g = 2 + random.nextInt(p - 3);
+            if (ModMath.powerModulo(g, 2, p) != 1 && ModMath.powerModulo(g, q, p) != 1) {
+                return g;
+            }
+        }
+    }
+
+    /**
+     * Checks a group picked by someone else: p has to be a safe prime and g a
+     * generator of its group.
+     *
+     * @param p Safe prime
+     * @param g Generator
+     * @return True if the group is valid
+     */
+    public static boolean isGroup(int p, int g) {
+        if (p < 7 || g < 2 || g > p - 2 || !ModMath.isPrime(p) || !ModMath.isPrime((p - 1) / 2)) {
+            return false;
+        }
+        return ModMath.powerModulo(g, 2, p) != 1 && ModMath.powerModulo(g, (p - 1) / 2, p) != 1;
+    }
+
+    /**
+     * @return Size of the primes in bits
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return Number of primes ready to be taken
+     */
+    public int getDepth() {
+        return pool.size();
+    }
+
+    /**
+     * @return Maximum number of primes kept ready
+     */
+    public int getCapacity() {
+        return pool.size() + pool.remainingCapacity();
+    }
+
+    /**
+     * @return Number of primes generated since start
+     */
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    /**
+     * @return Number of primes taken since start
+     */
+    public long getTakenCount() {
+        return taken.get();
+    }
+
+    /**
+     * @return Primes generated per second while the generator was working
+     */
+    public double getRefillRate() {
+        long nanos = busyNanos.get();
+        return nanos == 0 ? 0 : generated.get() * 1e9 / nanos;
+    }
+}
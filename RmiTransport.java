@@ -0,0 +1,66 @@
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * RMI transport. The server is exported as a stub and bound as " MyServer "
+ * in a registry, which is created if it is not running yet. The registry is
+ * on port 1099, or on the port of this node in a cluster, and the stub on
+ * server.rmi.port (1098 by default, any free port in a cluster).
+ */
+public class RmiTransport implements ServerTransport {
+
+    private MyServer server;
+    private Registry reg;
+
+    @Override
+    public String getName() {
+        return "rmi";
+    }
+
+    @Override
+    public void start(MyServer server) throws IOException {
+        //First we set the new policyFile
+        System.setProperty("java.security.policy", "file:policy.policy");
+        if (System.getSecurityManager() == null) {
+            System.setSecurityManager(new SecurityManager());
+        }
+
+        ClusterNodes cluster = server.getCluster();
+        ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(server,
+                Integer.getInteger("server.rmi.port", cluster == null ? 1098 : 0));
+        this.server = server;
+        int registryPort = cluster == null ? 1099 : cluster.getRegistryPort();
+        try {
+            reg = LocateRegistry.createRegistry(registryPort);
+        } catch (RemoteException e) {
+            //Already running, in this process or as an rmiregistry
+            reg = LocateRegistry.getRegistry(registryPort);
+        }
+        reg.rebind(" MyServer ", stub);
+    }
+
+    @Override
+    public void close() {
+        //Either may be missing when the transport did not start
+        if (reg != null) {
+            try {
+                reg.unbind(" MyServer ");
+            } catch (RemoteException | NotBoundException e) {
+                System.err.println(e);
+            }
+        }
+        if (server != null) {
+            try {
+                UnicastRemoteObject.unexportObject(server, true);
+            } catch (NoSuchObjectException e) {
+                System.err.println(e);
+            }
+        }
+    }
+}
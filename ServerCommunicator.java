@@ -1,10 +1,12 @@
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * This class has two purposes. One, if the server is communicating trough RMI then it just stores the values of the client such as the locked key.
- * Second, if the server is communicating by sockets, then starts a thread which communicates with the server.
+ * This class is the connection of one socket user. With the blocking sockets it is a thread which communicates with the client.
+ * With the non-blocking sockets it only stores the values of the connection and the event loops do the communication.
+ * The users of the RMI calls and of multiplexed streams have no object of their own, they live in the {@link SessionStore}.
  * @author Alexandru Amarandei Stanescu aas1u16 University of Southampton
  */
 public class ServerCommunicator extends Thread {
@@ -12,12 +14,15 @@ public class ServerCommunicator extends Thread {
     private Socket socket;
     private MyServer server;
     private int ID;
-    public String name;
+    //Written and read by different threads of a session
+    public volatile String name;
     private DataInputStream in;
     private DataOutputStream out;
     private int p, g, a, key, x, y;
     private boolean rmi;
-    private String keyLocked;
+    //System.nanoTime() of the accept of a socket user and of the moment it got x, 0 if not known
+    private long accepted;
+    private volatile long greeted;
 
     /** 
      * Constructor to create a server by socket communication.
@@ -36,7 +41,8 @@ public class ServerCommunicator extends Thread {
     }
 
     /**
-     * Constructor to create a server by RMI communication.
+     * Constructor to create a user of the non-blocking sockets, which only
+     * stores the values.
      * @param server Server reference
      * @param p p value
      * @param g g value
@@ -61,7 +67,7 @@ public class ServerCommunicator extends Thread {
 
     /**
      * This function is used to compute the modulo of a number multiplied by a
-     * factor, power number of times.
+     * factor, power number of times. The work is done by {@link ModMath}.
      * <p>
      * Example:
      * <blockquote><pre>
@@ -76,12 +82,7 @@ public class ServerCommunicator extends Thread {
      */
     
     public int powerModulo(int number, int factor, int power, int modulo) {
-        int solution = number % modulo;
-        for (int i = 1; i <= power; i++) {
-            solution = solution * factor;
-            solution = solution % modulo;
-        }
-        return solution;
+        return ModMath.powerModulo(number, factor, power, modulo);
     }
 
     /**
@@ -89,6 +90,7 @@ public class ServerCommunicator extends Thread {
      * @throws IOException
      */
     public void setIO() throws IOException {
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, server.getIdleTimeout()));
         in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
@@ -97,19 +99,207 @@ public class ServerCommunicator extends Thread {
     public void run() {
 
         if (rmi == false) {
-            String toSend;
-            toSend = Integer.toString(x) + " " + Integer.toString(g) + " " + Integer.toString(p) + " " + Integer.toString(ID);
-            sendMessege(toSend);
+            ServerMetrics metrics = server.getMetrics();
+            metrics.sessionOpened();
+            sendMessege(getGreeting());
+            markGreeted();
             try {
-                name = in.readUTF();
-                String response = in.readUTF();
-                y = Integer.parseInt(response);
-                key = powerModulo(y, g, a, p);
-                sendMessege(server.getCipher(name, key));
+                //A binary client sends the marker where a legacy one sends the length of its name
+                in.mark(2);
+                if (in.readUnsignedShort() == WireProtocol.MARKER) {
+                    WireProtocol.Frame frame = WireProtocol.readFrame(in, WireProtocol.MAX_FRAME);
+                    if (frame.type == WireProtocol.SESSION) {
+                        runSession(frame.getHello());
+                    } else if (frame.type == WireProtocol.MULTIPLEX) {
+                        //The users come in streams, the one of the greeting is not needed
+                        server.removeUser(ID);
+                        serveFrames(server.openMultiplexed(frameSink()));
+                    } else if (frame.type == WireProtocol.HELLO) {
+                        WireProtocol.Hello hello = frame.getHello();
+                        name = hello.name;
+                        String cipher = server.getCipher(name, deriveKey(hello.y));
+                        long start = System.nanoTime();
+                        WireProtocol.writeCipher(out, cipher);
+                        out.flush();
+                        metrics.recordSince(ServerMetrics.RESPONSE_WRITE, start);
+                    } else {
+                        throw new IOException("Bad hello frame");
+                    }
+                } else {
+                    in.reset();
+                    name = in.readUTF();
+                    String cipher = server.getCipher(name, deriveKey(in.readUTF()));
+                    long start = System.nanoTime();
+                    sendMessege(cipher);
+                    metrics.recordSince(ServerMetrics.RESPONSE_WRITE, start);
+                }
             } catch (IOException e) {
                 System.err.println(e);
+            } finally {
+                //The user is done, free its prime for the next one
+                server.removeUser(ID);
+                metrics.sessionClosed();
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Serves a long lived session until the client closes it or stays silent
+     * for longer than the idle timeout with nothing in flight.
+     * @param hello Name and y of the client
+     * @throws IOException If the connection fails
+     */
+    private void runSession(WireProtocol.Hello hello) throws IOException {
+        PipelinedSession session = server.openSession(this, frameSink());
+        session.open(hello, server.getIdleTimeout());
+        serveFrames(session);
+    }
+
+    /**
+     * Writes the answers of a session, from whatever thread gives them.
+     * @return The sink
+     */
+    private FrameHandler.FrameSink frameSink() {
+        return frame -> {
+            synchronized (out) {
+                try {
+                    long start = System.nanoTime();
+                    out.write(frame.array(), frame.position(), frame.remaining());
+                    out.flush();
+                    server.getMetrics().recordSince(ServerMetrics.RESPONSE_WRITE, start);
+                } catch (IOException e) {
+                    System.err.println("Error in printing the msg");
+                    closeQuietly();
+                }
+            }
+        };
+    }
+
+    /**
+     * Hands the frames of the client to a session until the client closes the
+     * connection or stays silent for longer than the idle timeout with nothing
+     * in flight.
+     * @param session Session reading the frames
+     * @throws IOException If the connection fails
+     */
+    private void serveFrames(FrameHandler session) throws IOException {
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (SocketTimeoutException e) {
+                    //Nothing of a frame was read yet, so it is safe to wait again
+                    if (session.getInFlight() > 0) {
+                        continue;
+                    }
+                    break;
+                } catch (EOFException e) {
+                    break;
+                }
+                //A timeout from here on would leave the stream in the middle of the frame, and ends the session
+                WireProtocol.Frame frame = WireProtocol.readFrame(in, type, WireProtocol.MAX_FRAME);
+                session.awaitCapacity();
+                session.onFrame(frame);
             }
+        } finally {
+            session.close();
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Builds the first message of the socket exchange.
+     * @return x, g, p and the ID separated by single spaces, then the tokens of the binary protocol.
+     */
+    public String getGreeting() {
+        return Integer.toString(x) + " " + Integer.toString(g) + " " + Integer.toString(p) + " " + Integer.toString(ID)
+                + " " + WireProtocol.VERSION + " " + WireProtocol.SESSIONS + " " + WireProtocol.MUX;
+    }
+
+    /**
+     * Computes the key from the y value sent by a socket client.
+     * @param response Y value from client
+     * @return The key.
+     * @throws IOException If the y value is not a number
+     */
+    public int deriveKey(String response) throws IOException {
+        int y;
+        try {
+            y = Integer.parseInt(response);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad y value: " + response);
+        }
+        return deriveKey(y);
+    }
+
+    /**
+     * Computes the key from the y value sent by a binary client.
+     * @param response Y value from client
+     * @return The key.
+     */
+    public int deriveKey(int response) {
+        long start = receivedY();
+        y = response;
+        key = powerModulo(y, g, a, p);
+        server.getMetrics().recordSince(ServerMetrics.KEY_DERIVATION, start);
+        return key;
+    }
+
+    /**
+     * Sets when a socket user was accepted, so the time until it gets x is
+     * recorded.
+     * @param accepted System.nanoTime() of the accept
+     */
+    public void setAccepted(long accepted) {
+        this.accepted = accepted;
+    }
+
+    /**
+     * Notes that the user got x. The time since the accept is recorded, and
+     * the time until y arrives is recorded by the next key derivation.
+     */
+    public void markGreeted() {
+        long now = System.nanoTime();
+        if (accepted != 0) {
+            server.getMetrics().record(ServerMetrics.ACCEPT, now - accepted);
+            accepted = 0;
+        }
+        greeted = now;
+    }
+
+    /**
+     * Records the wait for y, once per greeting.
+     * @return The current System.nanoTime()
+     */
+    private long receivedY() {
+        long now = System.nanoTime();
+        long since = greeted;
+        if (since != 0) {
+            greeted = 0;
+            server.getMetrics().record(ServerMetrics.Y_RECEIPT, now - since);
         }
+        return now;
+    }
+
+    /**
+     * Starts a new exchange in the same group for a session that rekeys. The
+     * key comes from the next {@link #deriveKey(int)}.
+     * @return The new x.
+     */
+    public int rekey() {
+        a = ThreadLocalRandom.current().nextInt(4096) + 4096;
+        x = powerModulo(1, g, a, p);
+        return x;
     }
 
     /**
@@ -136,49 +326,12 @@ public class ServerCommunicator extends Thread {
         }
     }
     
-    /**
-     * Locks a key.
-     * @param key Key to be locked
-     * @param lock Lock
-     * @return 
-     */
-    private String lockKey(int key, int lock) {
-        char[] stringKey = Integer.toString(key).toCharArray();
-        String resultKey = "";
-        for (int i = 0; i < stringKey.length; i++) {
-            char temp = (char) (stringKey[stringKey.length - i - 1] + (char) lock);
-            resultKey = resultKey.concat(Character.toString(temp));
-        }
-
-        return resultKey;
+    protected int getID() {
+        return ID;
     }
 
-    /**
-     * Gets the primes from this client and sets it's name.
-     * @param name Name of client.
-     * @return Primes as a string.
-     */
-    public String getPrimes(String name) {
-        this.name = name;
-        return Integer.toString(x) + " " + Integer.toString(g) + " " + Integer.toString(p);
-    }
-
-    /**
-     * Sets Y.
-     * @param response Response from client
-     * @param lock locker to crypt key.
-     */
-    public void setY(String response, int lock) {
-        y = Integer.parseInt(response);
-        keyLocked = lockKey(powerModulo(y, g, a, p), lock);
-    }
-
-    /**
-     * Gets the locked key.
-     * @return The locked key.
-     */
-    protected String getKey() {
-        return keyLocked;
+    protected int getX() {
+        return x;
     }
 
     protected int getP() {
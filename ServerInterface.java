@@ -34,4 +34,35 @@ public interface ServerInterface extends Remote {
      */
     public String getCipher(int lock, int ID) throws RemoteException;
 
+    /**
+     * Binary version of {@link #getPrimes(String)}, the values come as
+     * numbers so nothing has to be parsed.
+     * @param name Name of the user
+     * @return x, g, p and the ID
+     * @throws RemoteException
+     */
+    public int[] getGroup(String name) throws RemoteException;
+
+    /**
+     * Binary version of {@link #setY(String, int, int)}.
+     * @param y Y
+     * @param lock Value to lock the key with.
+     * @param ID User ID
+     * @throws RemoteException
+     */
+    public void setY(int y, int lock, int ID) throws RemoteException;
+
+    /**
+     * Does the whole exchange in one call. The user picks the group and sends
+     * its public value with it, the server answers with its own public value
+     * and the cipher, and keeps nothing about the user.
+     * @param name Name of the user
+     * @param p Safe prime picked by the user
+     * @param g Generator of the group of p
+     * @param y Public value of the user
+     * @return x and the cipher
+     * @throws RemoteException If the group is not valid or the cipher can not be got
+     */
+    public HandshakeResult exchange(String name, int p, int g, int y) throws RemoteException;
+
 }
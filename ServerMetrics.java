@@ -0,0 +1,191 @@
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of every phase of the handshake and counters of a
+ * {@link MyServer}. The transports record into it as they go, and the
+ * counters of the prime allocator, the cache and the upstream client are read
+ * when asked for, so nothing is kept twice. Recording is lock free, so it is
+ * left on all the time.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    /**
+     * Phases of the handshake.
+     */
+    public static final int ACCEPT = 0, PARAMETERS = 1, Y_RECEIPT = 2, KEY_DERIVATION = 3, UPSTREAM = 4,
+            RESPONSE_WRITE = 5;
+
+    private static final int PHASES = 6;
+
+    private final MyServer server;
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES];
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong expiredSessions = new AtomicLong();
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param server Server whose counters are read
+     */
+    public ServerMetrics(MyServer server) {
+        this.server = server;
+        for (int i = 0; i < PHASES; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records how long a phase took.
+     *
+     * @param phase One of the phases
+     * @param nanos Duration in nanoseconds
+     */
+    public void record(int phase, long nanos) {
+        phases[phase].record(nanos);
+    }
+
+    /**
+     * Records a phase that started at a given time and ends now.
+     *
+     * @param phase One of the phases
+     * @param start System.nanoTime() at the start of the phase
+     */
+    public void recordSince(int phase, long start) {
+        phases[phase].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Gets the histogram of a phase.
+     *
+     * @param phase One of the phases
+     * @return The histogram
+     */
+    public LatencyHistogram getHistogram(int phase) {
+        return phases[phase];
+    }
+
+    /**
+     * Counts a socket connection that started being served.
+     */
+    public void sessionOpened() {
+        activeSessions.incrementAndGet();
+    }
+
+    /**
+     * Counts a socket connection that is done.
+     */
+    public void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    /**
+     * Counts an RMI user removed because its time was over.
+     */
+    public void sessionExpired() {
+        expiredSessions.incrementAndGet();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getAccept() {
+        return phases[ACCEPT].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getParameters() {
+        return phases[PARAMETERS].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getYReceipt() {
+        return phases[Y_RECEIPT].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getKeyDerivation() {
+        return phases[KEY_DERIVATION].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getUpstream() {
+        return phases[UPSTREAM].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getResponseWrite() {
+        return phases[RESPONSE_WRITE].snapshot();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public int getUsers() {
+        return server.getUserCount();
+    }
+
+    @Override
+    public long getExpiredSessions() {
+        return expiredSessions.get();
+    }
+
+    @Override
+    public int getPendingExpiries() {
+        return server.getPendingExpiries();
+    }
+
+    @Override
+    public int getPrimesLeased() {
+        PrimeAllocator primes = server.getPrimeAllocator(), legacy = server.getLegacyPrimeAllocator();
+        return primes.getLeasedCount() + (legacy == primes ? 0 : legacy.getLeasedCount());
+    }
+
+    @Override
+    public int getPrimePoolDepth() {
+        PrimeAllocator primes = server.getPrimeAllocator(), legacy = server.getLegacyPrimeAllocator();
+        return primes.getPool().getDepth() + (legacy == primes ? 0 : legacy.getPool().getDepth());
+    }
+
+    @Override
+    public long getPrimeExhaustedCount() {
+        PrimeAllocator primes = server.getPrimeAllocator(), legacy = server.getLegacyPrimeAllocator();
+        return primes.getExhaustedCount() + (legacy == primes ? 0 : legacy.getExhaustedCount());
+    }
+
+    @Override
+    public long getCacheHits() {
+        return server.getCipherCache().getHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return server.getCipherCache().getMissCount();
+    }
+
+    @Override
+    public int getUpstreamInFlight() {
+        return server.getUpstream().getInFlight();
+    }
+
+    @Override
+    public long getUpstreamFailures() {
+        UpstreamClient upstream = server.getUpstream();
+        return upstream.getFailureCount() + upstream.getRejectedCount() + upstream.getShortCircuitedCount();
+    }
+
+    @Override
+    public long getForwardedCalls() {
+        ClusterNodes cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getForwardedCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram phase : phases) {
+            phase.reset();
+        }
+    }
+}
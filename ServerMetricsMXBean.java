@@ -0,0 +1,105 @@
+
+/**
+ * Management interface of {@link ServerMetrics}, registered by
+ * {@link MyServer} on the platform MBean server under
+ * ServerEncryption:type=ServerMetrics,port=(port). The latencies are in
+ * microseconds and count from the start of the server or the last
+ * {@link #reset()}.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return From accepting a socket to sending it the greeting
+     */
+    LatencyHistogram.Snapshot getAccept();
+
+    /**
+     * @return Picking p and g and computing x for a new user
+     */
+    LatencyHistogram.Snapshot getParameters();
+
+    /**
+     * @return From giving x to a user to receiving its y
+     */
+    LatencyHistogram.Snapshot getYReceipt();
+
+    /**
+     * @return Computing the key from y
+     */
+    LatencyHistogram.Snapshot getKeyDerivation();
+
+    /**
+     * @return Calls to the soton CiphertextProvider
+     */
+    LatencyHistogram.Snapshot getUpstream();
+
+    /**
+     * @return Writing the cipher or the answer of a session to a socket
+     */
+    LatencyHistogram.Snapshot getResponseWrite();
+
+    /**
+     * @return Socket connections being served right now
+     */
+    int getActiveSessions();
+
+    /**
+     * @return Users stored in the session registry
+     */
+    int getUsers();
+
+    /**
+     * @return RMI users removed because they did not finish in time
+     */
+    long getExpiredSessions();
+
+    /**
+     * @return RMI users whose time is not over yet
+     */
+    int getPendingExpiries();
+
+    /**
+     * @return Primes held by live users
+     */
+    int getPrimesLeased();
+
+    /**
+     * @return Fresh primes waiting in the pool
+     */
+    int getPrimePoolDepth();
+
+    /**
+     * @return Times a user could not get a prime
+     */
+    long getPrimeExhaustedCount();
+
+    /**
+     * @return Ciphers answered from the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return Ciphers that had to be asked upstream
+     */
+    long getCacheMisses();
+
+    /**
+     * @return Upstream calls running right now
+     */
+    int getUpstreamInFlight();
+
+    /**
+     * @return Upstream calls that failed, timed out or were turned away
+     */
+    long getUpstreamFailures();
+
+    /**
+     * @return Calls forwarded to the other nodes of the cluster
+     */
+    long getForwardedCalls();
+
+    /**
+     * Forgets the recorded latencies. The counters are kept.
+     */
+    void reset();
+}
@@ -0,0 +1,59 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Way the clients reach a {@link MyServer}. The transports only carry the
+ * calls: the users, the keys and the ciphers are handled by the server, so a
+ * server can run several transports at once over the same users.
+ * <p>
+ * The transport is picked at run time by its name, see
+ * {@link #forName(String)}.
+ */
+public interface ServerTransport extends Closeable {
+
+    /**
+     * @return Name of the transport, as given to {@link #forName(String)}
+     */
+    String getName();
+
+    /**
+     * Starts taking the calls of the clients for a server.
+     *
+     * @param server Server the calls go to
+     * @throws IOException If the transport can not be started
+     */
+    void start(MyServer server) throws IOException;
+
+    /**
+     * Stops taking new clients.
+     */
+    @Override
+    void close();
+
+    /**
+     * Creates a transport from its name: rmi, socket, nio or inprocess. The
+     * nio transport runs server.nio.threads event loops, one per core by
+     * default.
+     *
+     * @param name Name of the transport
+     * @return The transport, not started
+     * @throws IllegalArgumentException If there is no transport with this
+     * name
+     */
+    static ServerTransport forName(String name) {
+        switch (name) {
+            case "rmi":
+                return new RmiTransport();
+            case "socket":
+                return new SocketTransport();
+            case "nio":
+                return new NioTransport(Integer.getInteger("server.nio.threads",
+                        Runtime.getRuntime().availableProcessors()));
+            case "inprocess":
+                return new InProcessTransport();
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+}
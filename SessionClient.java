@@ -0,0 +1,248 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Client of a long lived session of {@link WireProtocol}. The key is
+ * exchanged once when connecting, then {@link #request()} can be called as
+ * often as needed, from any thread and without waiting for the previous
+ * answers. Every answer is deciphered with the key its request was sent with.
+ * <p>
+ * The server only allows a number of requests with one key, so the client
+ * rekeys on its own before it gets there. A session left idle for longer than
+ * the timeout of the server is closed by the server, and a new one has to be
+ * made.
+ */
+public class SessionClient implements Closeable {
+
+    //Largest answer accepted, a cipher of a gigabyte
+    private static final int MAX_ANSWER = 1 << 30;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int g, p;
+    private final Random random = new Random();
+    private final int rekeyAfter;
+    private final long idleTimeout;
+    //Requests waiting for an answer, by request ID
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+    //Guarded by out
+    private CompiledKey key;
+    private int nextID, sinceRekey, rekeys;
+    //Also read by the reader thread
+    private volatile CompletableFuture<Integer> rekeyed;
+    private volatile IOException failure;
+
+    /**
+     * Connects and exchanges the first key.
+     *
+     * @param host Host of the server
+     * @param port Port of the server
+     * @param name Name of the user
+     * @throws IOException If the server can not be reached or does not keep
+     * sessions
+     */
+    public SessionClient(String host, int port, String name) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        try {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] greeting = new byte[in.readUnsignedShort()];
+            in.readFully(greeting);
+            int[] values = WireProtocol.parseGreeting(greeting, greeting.length);
+            if ((values[4] & WireProtocol.PIPELINING) == 0) {
+                throw new IOException("Server does not keep sessions");
+            }
+            g = values[1];
+            p = values[2];
+            int b = random.nextInt(4096) + 4096;
+            key = CompiledKey.of(ModMath.powerModulo(values[0], g, b, p), Decipher.ROUNDS);
+            write(WireProtocol.helloFrame(WireProtocol.SESSION, name, ModMath.powerModulo(1, g, b, p)));
+            WireProtocol.Frame ready = WireProtocol.readFrame(in, MAX_ANSWER);
+            if (ready.type != WireProtocol.READY) {
+                throw new IOException("Bad ready frame");
+            }
+            ByteBuffer payload = ready.getPayload();
+            rekeyAfter = WireProtocol.getVarint(payload);
+            idleTimeout = WireProtocol.getVarint(payload);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(this::readAnswers, "session-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Asks for a new cipher.
+     *
+     * @return The deciphered text, or an IOException if the session failed
+     */
+    public CompletableFuture<String> request() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            synchronized (out) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (sinceRekey >= rekeyAfter) {
+                    rekey();
+                }
+                int id = nextID;
+                nextID = (nextID + 1) & Integer.MAX_VALUE;
+                sinceRekey++;
+                pending.put(id, new Pending(key, result));
+                write(WireProtocol.varintFrame(WireProtocol.REQUEST, id));
+            }
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Exchanges a new key. The requests already sent keep the old one.
+     */
+    private void rekey() throws IOException {
+        int b = random.nextInt(4096) + 4096;
+        rekeyed = new CompletableFuture<>();
+        write(WireProtocol.intFrame(WireProtocol.REKEY, ModMath.powerModulo(1, g, b, p)));
+        int x;
+        try {
+            x = rekeyed.get(Math.max(idleTimeout, 1000), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rekeying", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Rekey failed", e);
+        }
+        key = CompiledKey.of(ModMath.powerModulo(x, g, b, p), Decipher.ROUNDS);
+        sinceRekey = 0;
+        rekeys++;
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.position(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * Reads the answers until the session ends.
+     */
+    private void readAnswers() {
+        try {
+            while (true) {
+                WireProtocol.Frame frame = WireProtocol.readFrame(in, MAX_ANSWER);
+                ByteBuffer payload = frame.getPayload();
+                if (frame.type == WireProtocol.REKEYED) {
+                    CompletableFuture<Integer> waiting = rekeyed;
+                    if (waiting != null) {
+                        waiting.complete(payload.getInt());
+                    }
+                    continue;
+                }
+                int id = WireProtocol.getVarint(payload);
+                Pending request = pending.remove(id);
+                if (request == null) {
+                    continue;
+                }
+                String text = frame.getText(payload.position());
+                if (frame.type == WireProtocol.RESPONSE) {
+                    request.result.complete(decipher(text, request.key));
+                } else {
+                    request.result.completeExceptionally(new IOException(text));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        IOException closed = new IOException("Session closed", failure);
+        //A request may be holding out while it waits for the rekey
+        CompletableFuture<Integer> waiting = rekeyed;
+        if (waiting != null) {
+            waiting.completeExceptionally(closed);
+        }
+        synchronized (out) {
+            failure = closed;
+        }
+        for (Integer id : pending.keySet()) {
+            Pending request = pending.remove(id);
+            if (request != null) {
+                request.result.completeExceptionally(closed);
+            }
+        }
+    }
+
+    private static String decipher(String cipher, CompiledKey key) {
+        char[] solved = cipher.toCharArray();
+        int length = ParallelDecipher.resolve(solved, 0, solved.length, key);
+        return new String(solved, 0, length);
+    }
+
+    /**
+     * @return Requests the server allows with one key
+     */
+    public int getRekeyAfter() {
+        return rekeyAfter;
+    }
+
+    /**
+     * @return Milliseconds of silence after which the server closes the
+     * session
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return Number of times the key was exchanged again
+     */
+    public int getRekeyCount() {
+        synchronized (out) {
+            return rekeys;
+        }
+    }
+
+    /**
+     * @return True if the session can still be used
+     */
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Closes the session. The requests still waiting fail.
+     *
+     * @throws IOException If the socket can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private static final class Pending {
+
+        final CompiledKey key;
+        final CompletableFuture<String> result;
+
+        Pending(CompiledKey key, CompletableFuture<String> result) {
+            this.key = key;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Journal of the users of a {@link SessionStore} in a memory mapped file, so
+ * the users that are half way through their handshake survive a restart of
+ * the server. The changes of the store are made through the journal, which
+ * appends each as a record while it holds the lock a compaction takes, so
+ * the file always has them in the order of the store:
+ * <blockquote><pre>
+ * ADD    = type, ID, p, x, length of the name (-1 for none), name (UTF-8)
+ * KEY    = type, ID, length of the key, locked key (UTF-16)
+ * REMOVE = type, ID
+ * </pre></blockquote>
+ * The numbers take 4 bytes each. The key is written locked, as
+ * {@link SessionStore#lockKey(int, int)} does, and the lock is left out, so
+ * the file alone does not give the keys away. Only the owner of the server
+ * can read the file. The type byte of a record is written after the rest of
+ * it, so a record cut by a crash of the process is not read back.
+ * The writes go to the page cache and reach the disk when the system flushes
+ * it, or on {@link #close()}.
+ * <p>
+ * When the file is full it is compacted: the users still in the store are
+ * written to a new file, which replaces the old one. The socket users, which
+ * have no name in the store, are left out as they end with their
+ * connection. The file is made twice as large when it is still more than
+ * half full after that.
+ */
+public class SessionJournal implements Closeable {
+
+    private static final int MAGIC = 0x534A4E32;
+    //The first journals kept the keys unlocked
+    private static final int OLD_MAGIC = 0x534A4E31;
+    //Longest locked key, the digits of an int
+    private static final int MAX_KEY_LENGTH = 10;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    //A type of 0 marks the end of the records
+    private static final byte ADD = 1, KEY = 2, REMOVE = 3;
+
+    private final Path path;
+    private final SessionStore store;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Opens the journal, creating the file if it is not there.
+     *
+     * @param path File of the journal
+     * @param size Size of the file in bytes when it is created
+     * @param store Store the journal is about
+     * @throws IOException If the file can not be opened or is not a journal
+     */
+    public SessionJournal(Path path, int size, SessionStore store) throws IOException {
+        this.path = path;
+        this.store = store;
+        //An empty file is what a crash right after creating it leaves
+        boolean created = !Files.exists(path) || Files.size(path) < 4;
+        map(path, created ? size : (int) Files.size(path));
+        if (created) {
+            buffer.putInt(MAGIC);
+            return;
+        }
+        int magic = buffer.getInt();
+        if (magic == OLD_MAGIC) {
+            //It only holds handshakes under way, they are dropped with the keys in it
+            System.err.println("Dropping the session journal of an older version: " + path);
+            channel.close();
+            Files.delete(path);
+            map(path, size);
+            buffer.putInt(MAGIC);
+        } else if (magic != MAGIC) {
+            close();
+            throw new IOException("Not a session journal: " + path);
+        } else if (isPosix(path)) {
+            //Made by hand, or before the journal set the permissions itself
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+        }
+    }
+
+    private static boolean isPosix(Path file) {
+        return file.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private void map(Path file, int size) throws IOException {
+        FileAttribute<?>[] attributes = isPosix(file)
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(OWNER_ONLY)}
+                : new FileAttribute<?>[0];
+        channel = FileChannel.open(file, Set.of(StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE), attributes);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Reads the journal into the store and leaves the file ready for new
+     * records. Called once, before anything is appended. The replay stops at
+     * the first record that is cut or does not make sense, as a crash of the
+     * system can leave the last records half written.
+     *
+     * @return Number of users in the store afterwards
+     */
+    public synchronized int load() {
+        while (buffer.remaining() > 0) {
+            int start = buffer.position();
+            if (!loadRecord(buffer.get())) {
+                //The end, or a record that was never finished
+                buffer.position(start);
+                break;
+            }
+        }
+        return store.size();
+    }
+
+    /**
+     * Replays one record, if it is whole and valid.
+     *
+     * @param type Type of the record, already read
+     * @return False if the record is not valid, nothing was replayed then
+     */
+    private boolean loadRecord(byte type) {
+        if (type == ADD) {
+            if (buffer.remaining() < 16) {
+                return false;
+            }
+            int ID = buffer.getInt();
+            int p = buffer.getInt();
+            int x = buffer.getInt();
+            int length = buffer.getInt();
+            if (ID < 0 || p <= 0 || length < -1 || length > buffer.remaining()) {
+                return false;
+            }
+            String name = null;
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                name = new String(bytes, StandardCharsets.UTF_8);
+            }
+            store.add(ID, p, x, name);
+        } else if (type == KEY) {
+            if (buffer.remaining() < 8) {
+                return false;
+            }
+            int ID = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 1 || length > MAX_KEY_LENGTH || length * 2 > buffer.remaining()) {
+                return false;
+            }
+            char[] locked = new char[length];
+            buffer.asCharBuffer().get(locked);
+            buffer.position(buffer.position() + length * 2);
+            store.restoreKey(ID, new String(locked));
+        } else if (type == REMOVE) {
+            if (buffer.remaining() < 4) {
+                return false;
+            }
+            store.remove(buffer.getInt());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a new user to the store and appends it.
+     *
+     * @param ID ID of the user
+     * @param p p value
+     * @param x x value
+     * @param name Name, may be null
+     */
+    public synchronized void add(int ID, int p, int x, String name) {
+        store.add(ID, p, x, name);
+        byte[] bytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        int start = reserve(17 + (bytes == null ? 0 : bytes.length));
+        if (start < 0) {
+            return;
+        }
+        putAdd(ID, p, x, bytes);
+        buffer.put(start, ADD);
+    }
+
+    private void putAdd(int ID, int p, int x, byte[] name) {
+        buffer.putInt(ID).putInt(p).putInt(x);
+        if (name == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(name.length).put(name);
+        }
+    }
+
+    /**
+     * Makes the key of a user in the store and appends it, see
+     * {@link SessionStore#setY(int, int, int)}.
+     *
+     * @param ID ID of the user
+     * @param y Y value from the user
+     * @param lock Lock of the key
+     * @return Microseconds since the user was added, or -1 if there is no
+     * user with this ID
+     */
+    public synchronized long key(int ID, int y, int lock) {
+        long waited = store.setY(ID, y, lock);
+        if (waited < 0) {
+            return waited;
+        }
+        String lockedKey = store.getLockedKey(ID);
+        int start = reserve(9 + lockedKey.length() * 2);
+        if (start >= 0) {
+            putKey(ID, lockedKey);
+            buffer.put(start, KEY);
+        }
+        return waited;
+    }
+
+    private void putKey(int ID, String lockedKey) {
+        buffer.putInt(ID).putInt(lockedKey.length());
+        for (int i = 0; i < lockedKey.length(); i++) {
+            buffer.putChar(lockedKey.charAt(i));
+        }
+    }
+
+    /**
+     * Removes a user from the store and appends the removal.
+     *
+     * @param ID ID of the user
+     * @return The p of the removed user, or 0 if there was none with this ID
+     */
+    public synchronized int remove(int ID) {
+        int p = store.remove(ID);
+        if (p == 0) {
+            return 0;
+        }
+        int start = reserve(5);
+        if (start >= 0) {
+            buffer.putInt(ID);
+            buffer.put(start, REMOVE);
+        }
+        return p;
+    }
+
+    /**
+     * Makes room for a record and moves past its type byte, which is written
+     * last.
+     *
+     * @param length Length of the record
+     * @return Position of the record, or -1 if the journal can not be written
+     */
+    private int reserve(int length) {
+        //One byte more, for the end marker after the record
+        if (buffer.remaining() < length + 1) {
+            try {
+                compact(length + 1);
+            } catch (IOException e) {
+                System.err.println("Error while compacting the session journal");
+                System.err.println(e);
+                return -1;
+            }
+        }
+        int start = buffer.position();
+        buffer.position(start + 1);
+        return start;
+    }
+
+    /**
+     * Writes the users of the store to a new file, which takes the place of
+     * the journal. Safe to call at any time.
+     *
+     * @throws IOException If the new file can not be written
+     */
+    public synchronized void compact() throws IOException {
+        compact(0);
+    }
+
+    private void compact(int needed) throws IOException {
+        Path next = path.resolveSibling(path.getFileName() + ".compact");
+        int size = buffer.capacity();
+        while (true) {
+            Files.deleteIfExists(next);
+            FileChannel oldChannel = channel;
+            MappedByteBuffer oldBuffer = buffer;
+            map(next, size);
+            buffer.putInt(MAGIC);
+            boolean[] full = new boolean[1];
+            store.forEach((ID, p, x, lockedKey, name) -> {
+                if (name == null) {
+                    //A socket user, it does not outlive its connection
+                    return;
+                }
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if (full[0] || buffer.remaining() < 17 + 9 + MAX_KEY_LENGTH * 2 + bytes.length) {
+                    full[0] = true;
+                    return;
+                }
+                int start = buffer.position();
+                buffer.position(start + 1);
+                putAdd(ID, p, x, bytes);
+                buffer.put(start, ADD);
+                if (lockedKey != null) {
+                    buffer.put(KEY);
+                    putKey(ID, lockedKey);
+                }
+            });
+            if (!full[0] && buffer.remaining() > needed && buffer.position() <= size / 2) {
+                buffer.force();
+                channel.close();
+                oldChannel.close();
+                Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                //The mapping stays valid after the move and the close
+                return;
+            }
+            //Still more than half full, try again with a file twice as large
+            channel.close();
+            channel = oldChannel;
+            buffer = oldBuffer;
+            if (size > Integer.MAX_VALUE / 2) {
+                throw new IOException("Session journal is too large");
+            }
+            size *= 2;
+        }
+    }
+
+    /**
+     * Writes the journal to the disk and closes it.
+     *
+     * @throws IOException If the file can not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,532 @@
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the state of every user in arrays of ints instead of one object per
+ * user, so a pending handshake costs a few dozen bytes and millions of them
+ * fit in a modest heap. Only the socket transport attaches a thread to a
+ * user, see {@link ServerCommunicator}.
+ * <p>
+ * A user is kept as p, x, its key once y arrived, the lock of the key, the
+ * time it was added and its name. g and a are not needed after x is made:
+ * the key of this scheme is y * x % p (see {@link ModMath#powerModulo(int,
+ * int, int, int)}). The key is not stored locked as a String, the lock is
+ * kept next to it and only checked when the key is asked for, see
+ * {@link #unlock(int, int)}. Only a user restored from a journal keeps its
+ * key locked, as the journal does not write the lock down.
+ * <p>
+ * The users are spread by ID over independent stripes, each an open
+ * addressing table with linear probing guarded by its own lock, so threads
+ * working on different users rarely wait on each other.
+ */
+public class SessionStore {
+
+    private static final int STRIPES = 16;
+
+    /**
+     * Receives the users of {@link #forEach(Visitor)}.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for one user.
+         *
+         * @param ID ID of the user
+         * @param p p value
+         * @param x x value
+         * @param lockedKey Key as given by {@link #getLockedKey(int)}
+         * @param name Name, may be null
+         */
+        void visit(int ID, int p, int x, String lockedKey, String name);
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger currentIDCount = new AtomicInteger();
+    //The IDs given are currentIDCount * nodes + node, below idLimit
+    private final int node, nodes, idLimit;
+
+    /**
+     * Creates an empty store.
+     */
+    public SessionStore() {
+        this(0, 1);
+    }
+
+    /**
+     * Creates an empty store for one node of a cluster. It only gives the IDs
+     * owned by the node, see {@link ClusterNodes#ownerOf(int, int)}.
+     *
+     * @param node Index of the node
+     * @param nodes Number of nodes
+     */
+    public SessionStore(int node, int nodes) {
+        this.node = node;
+        this.nodes = nodes;
+        idLimit = Integer.MAX_VALUE / nodes;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Gets the next free ID. Safe to call from any thread. The IDs start again
+     * from the lowest one after about 2^31 of them, skipping those still in
+     * use, so they are never negative.
+     *
+     * @return nextID
+     */
+    public int nextID() {
+        while (true) {
+            int ID = currentIDCount.getAndUpdate(count -> count + 1 < idLimit ? count + 1 : 0) * nodes + node;
+            int hash = hash(ID);
+            if (!stripe(hash).contains(ID, hash)) {
+                return ID;
+            }
+        }
+    }
+
+    /**
+     * Makes sure the next IDs given are above an ID already used, for the
+     * users restored after a restart.
+     *
+     * @param ID ID in use
+     */
+    public void reserveID(int ID) {
+        currentIDCount.accumulateAndGet(Math.min(ID / nodes + 1, idLimit - 1), Math::max);
+    }
+
+    //Spreads the consecutive IDs over the stripes and the slots
+    private static int hash(int ID) {
+        int h = ID * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    //No user has a negative ID, -1 marks the free slots of the stripes
+    private static boolean isValid(int ID) {
+        return ID >= 0;
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[hash >>> 28];
+    }
+
+    /**
+     * Adds a user.
+     *
+     * @param ID ID of the user, not negative
+     * @param p p value
+     * @param x x value
+     * @param name Name of the user, may be null until it is known
+     * @throws IllegalArgumentException If the ID is negative
+     */
+    public void add(int ID, int p, int x, String name) {
+        if (!isValid(ID)) {
+            throw new IllegalArgumentException("Negative ID " + ID);
+        }
+        int hash = hash(ID);
+        stripe(hash).add(ID, hash, p, x, name, (int) (System.nanoTime() / 1000));
+    }
+
+    /**
+     * Sets the name of a user.
+     *
+     * @param ID ID of the user
+     * @param name Name of the user
+     * @return False if there is no user with this ID
+     */
+    public boolean setName(int ID, String name) {
+        if (!isValid(ID)) {
+            return false;
+        }
+        int hash = hash(ID);
+        return stripe(hash).setName(ID, hash, name);
+    }
+
+    /**
+     * Gets the name of a user.
+     *
+     * @param ID ID of the user
+     * @return The name, or null if there is no user with this ID
+     */
+    public String getName(int ID) {
+        if (!isValid(ID)) {
+            return null;
+        }
+        int hash = hash(ID);
+        return stripe(hash).getName(ID, hash);
+    }
+
+    /**
+     * Makes the key of a user from its y and keeps it with a lock.
+     *
+     * @param ID ID of the user
+     * @param y Y value from the user
+     * @param lock Lock of the key
+     * @return Microseconds since the user was added, or -1 if there is no
+     * user with this ID
+     */
+    public long setY(int ID, int y, int lock) {
+        if (!isValid(ID)) {
+            return -1;
+        }
+        int hash = hash(ID);
+        return stripe(hash).setY(ID, hash, y, lock, (int) (System.nanoTime() / 1000));
+    }
+
+    /**
+     * Gets the key of a user. It is what unlocking the key locked by the
+     * lock of {@link #setY(int, int, int)} with the given lock gives: the key
+     * itself if both locks are the same, otherwise the digits of the key
+     * shifted by the difference, which is only worked out in that case.
+     *
+     * @param ID ID of the user
+     * @param lock Lock given by the user
+     * @return The key
+     * @throws IllegalStateException If there is no user with this ID or it
+     * has no key yet
+     * @throws NumberFormatException If the wrong lock does not give a number
+     */
+    public int unlock(int ID, int lock) {
+        long keyAndLock = getKey(ID);
+        if (keyAndLock == -1) {
+            String locked = getLockedKey(ID);
+            if (locked == null) {
+                throw new IllegalStateException("No key for user " + ID);
+            }
+            //Restored from a journal, only the locked key is known
+            return unlockKey(locked, lock);
+        }
+        int key = (int) (keyAndLock >>> 32);
+        int storedLock = (int) keyAndLock;
+        if (storedLock == lock) {
+            return key;
+        }
+        char[] digits = Integer.toString(key).toCharArray();
+        for (int i = 0; i < digits.length; i++) {
+            //Same characters as locking then unlocking them one by one
+            digits[i] = (char) ((char) (digits[i] + (char) storedLock) - (char) lock);
+        }
+        return Integer.parseInt(new String(digits));
+    }
+
+    /**
+     * Locks a key the way the first version of the server kept it: the
+     * digits in reverse order, each moved by the lock.
+     *
+     * @param key Key to be locked
+     * @param lock Lock
+     * @return The locked key.
+     */
+    public static String lockKey(int key, int lock) {
+        char[] stringKey = Integer.toString(key).toCharArray();
+        char[] locked = new char[stringKey.length];
+        for (int i = 0; i < stringKey.length; i++) {
+            locked[i] = (char) (stringKey[stringKey.length - i - 1] + (char) lock);
+        }
+        return new String(locked);
+    }
+
+    /**
+     * Unlocks a key locked by {@link #lockKey(int, int)}.
+     *
+     * @param locked The locked key
+     * @param lock Lock given by the user
+     * @return The key
+     * @throws NumberFormatException If the wrong lock does not give a number
+     */
+    public static int unlockKey(String locked, int lock) {
+        char[] digits = new char[locked.length()];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = (char) (locked.charAt(digits.length - i - 1) - (char) lock);
+        }
+        return Integer.parseInt(new String(digits));
+    }
+
+    /**
+     * Removes a user.
+     *
+     * @param ID ID of the user
+     * @return The p of the removed user, or 0 if there was none with this ID
+     */
+    public int remove(int ID) {
+        if (!isValid(ID)) {
+            return 0;
+        }
+        int hash = hash(ID);
+        return stripe(hash).remove(ID, hash);
+    }
+
+    /**
+     * Calls a visitor for every user. Each stripe is locked while it is
+     * visited, so the visitor must not call the store.
+     *
+     * @param visitor Visitor
+     */
+    public void forEach(Visitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    /**
+     * Gets the key of a user and the lock it was given with.
+     *
+     * @param ID ID of the user
+     * @return The key in the high half and the lock in the low half, or -1
+     * if there is no user with this ID, it has no key yet or only its locked
+     * key is known
+     */
+    public long getKey(int ID) {
+        if (!isValid(ID)) {
+            return -1;
+        }
+        int hash = hash(ID);
+        return stripe(hash).getKey(ID, hash);
+    }
+
+    /**
+     * Gets the key of a user locked with its lock, as {@link #lockKey(int,
+     * int)} does. Unlike {@link #getKey(int)} it does not tell the lock.
+     *
+     * @param ID ID of the user
+     * @return The locked key, or null if there is no user with this ID or it
+     * has no key yet
+     */
+    public String getLockedKey(int ID) {
+        if (!isValid(ID)) {
+            return null;
+        }
+        int hash = hash(ID);
+        return stripe(hash).getLockedKey(ID, hash);
+    }
+
+    /**
+     * Sets the key of a user as it was before a restart.
+     *
+     * @param ID ID of the user
+     * @param lockedKey The key as given by {@link #getLockedKey(int)}
+     * @return False if there is no user with this ID
+     */
+    public boolean restoreKey(int ID, String lockedKey) {
+        if (!isValid(ID)) {
+            return false;
+        }
+        int hash = hash(ID);
+        return stripe(hash).restoreKey(ID, hash, lockedKey);
+    }
+
+    /**
+     * @return Number of users stored
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * One table of users, as parallel arrays indexed by slot.
+     */
+    private static final class Stripe {
+
+        private static final int EMPTY = -1;
+
+        private int[] ids, p, x, key, lock, added;
+        private boolean[] keyed;
+        //Keys restored locked, null for the keys made here
+        private String[] lockedKeys;
+        private String[] names;
+        private int size;
+
+        Stripe() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            ids = new int[capacity];
+            Arrays.fill(ids, EMPTY);
+            p = new int[capacity];
+            x = new int[capacity];
+            key = new int[capacity];
+            lock = new int[capacity];
+            added = new int[capacity];
+            keyed = new boolean[capacity];
+            lockedKeys = new String[capacity];
+            names = new String[capacity];
+        }
+
+        private int find(int ID, int hash) {
+            int mask = ids.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                if (ids[slot] == ID) {
+                    return slot;
+                }
+                if (ids[slot] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        synchronized void add(int ID, int hash, int p, int x, String name, int now) {
+            int slot = find(ID, hash);
+            if (slot < 0) {
+                if ((size + 1) * 4 > ids.length * 3) {
+                    grow();
+                }
+                int mask = ids.length - 1;
+                for (slot = hash & mask; ids[slot] != EMPTY; slot = (slot + 1) & mask) {
+                    //Linear probing to the first empty slot
+                }
+                ids[slot] = ID;
+                size++;
+            }
+            this.p[slot] = p;
+            this.x[slot] = x;
+            keyed[slot] = false;
+            lockedKeys[slot] = null;
+            names[slot] = name;
+            added[slot] = now;
+        }
+
+        synchronized boolean setName(int ID, int hash, String name) {
+            int slot = find(ID, hash);
+            if (slot < 0) {
+                return false;
+            }
+            names[slot] = name;
+            return true;
+        }
+
+        synchronized String getName(int ID, int hash) {
+            int slot = find(ID, hash);
+            return slot < 0 ? null : names[slot];
+        }
+
+        synchronized long setY(int ID, int hash, int y, int lock, int now) {
+            int slot = find(ID, hash);
+            if (slot < 0) {
+                return -1;
+            }
+            key[slot] = ModMath.powerModulo(y, x[slot], 1, p[slot]);
+            this.lock[slot] = lock;
+            keyed[slot] = true;
+            lockedKeys[slot] = null;
+            //Wraps every 71 minutes, far longer than a user lives
+            return (now - added[slot]) & 0xFFFFFFFFL;
+        }
+
+        synchronized boolean restoreKey(int ID, int hash, String lockedKey) {
+            int slot = find(ID, hash);
+            if (slot < 0) {
+                return false;
+            }
+            keyed[slot] = true;
+            lockedKeys[slot] = lockedKey;
+            return true;
+        }
+
+        synchronized void forEach(Visitor visitor) {
+            for (int slot = 0; slot < ids.length; slot++) {
+                if (ids[slot] != EMPTY) {
+                    visitor.visit(ids[slot], p[slot], x[slot], lockedKey(slot), names[slot]);
+                }
+            }
+        }
+
+        synchronized boolean contains(int ID, int hash) {
+            return find(ID, hash) >= 0;
+        }
+
+        synchronized long getKey(int ID, int hash) {
+            int slot = find(ID, hash);
+            return slot < 0 ? -1 : keyAndLock(slot);
+        }
+
+        synchronized String getLockedKey(int ID, int hash) {
+            int slot = find(ID, hash);
+            return slot < 0 ? null : lockedKey(slot);
+        }
+
+        private long keyAndLock(int slot) {
+            if (!keyed[slot] || lockedKeys[slot] != null) {
+                return -1;
+            }
+            return (long) key[slot] << 32 | (lock[slot] & 0xFFFFFFFFL);
+        }
+
+        private String lockedKey(int slot) {
+            if (!keyed[slot]) {
+                return null;
+            }
+            return lockedKeys[slot] != null ? lockedKeys[slot] : lockKey(key[slot], lock[slot]);
+        }
+
+        synchronized int remove(int ID, int hash) {
+            int slot = find(ID, hash);
+            if (slot < 0) {
+                return 0;
+            }
+            int removed = p[slot];
+            size--;
+            //Moves back the users after it that would no longer be found
+            int mask = ids.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; ids[next] != EMPTY; next = (next + 1) & mask) {
+                int home = hash(ids[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    move(next, hole);
+                    hole = next;
+                }
+            }
+            ids[hole] = EMPTY;
+            lockedKeys[hole] = null;
+            names[hole] = null;
+            return removed;
+        }
+
+        private void move(int from, int to) {
+            ids[to] = ids[from];
+            p[to] = p[from];
+            x[to] = x[from];
+            key[to] = key[from];
+            lock[to] = lock[from];
+            added[to] = added[from];
+            keyed[to] = keyed[from];
+            lockedKeys[to] = lockedKeys[from];
+            names[to] = names[from];
+        }
+
+        private void grow() {
+            int[] oldIds = ids, oldP = p, oldX = x, oldKey = key, oldLock = lock, oldAdded = added;
+            boolean[] oldKeyed = keyed;
+            String[] oldLockedKeys = lockedKeys, oldNames = names;
+            allocate(ids.length * 2);
+            int mask = ids.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] == EMPTY) {
+                    continue;
+                }
+                int slot = hash(oldIds[i]) & mask;
+                while (ids[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                ids[slot] = oldIds[i];
+                p[slot] = oldP[i];
+                x[slot] = oldX[i];
+                key[slot] = oldKey[i];
+                lock[slot] = oldLock[i];
+                added[slot] = oldAdded[i];
+                keyed[slot] = oldKeyed[i];
+                lockedKeys[slot] = oldLockedKeys[i];
+                names[slot] = oldNames[i];
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Blocking socket transport. One thread accepts the connections and every
+ * user gets a {@link ServerCommunicator} of its own, on a thread or on the
+ * session executor of the server.
+ */
+public class SocketTransport implements ServerTransport, Runnable {
+
+    private ServerSocket serverSocket;
+    private MyServer server;
+    private Thread acceptThread;
+
+    @Override
+    public String getName() {
+        return "socket";
+    }
+
+    @Override
+    public void start(MyServer server) throws IOException {
+        this.server = server;
+        serverSocket = new ServerSocket(server.getPort());
+        acceptThread = new Thread(this, "socket-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Waits for users to connect until the port is closed.
+     */
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                server.addUser(socket);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Problem with connection");
+                    System.err.println(e);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        //No socket when the port could not be opened
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Local stand-in for the soton CiphertextProvider, used to run the server
+ * offline. It enciphers a fixed text with the given key, the exact reverse of
+ * {@link MyClient#resolveCipher(String, int)}, after waiting a configurable
+ * latency plus a random jitter.
+ */
+public class StubCiphertextProvider implements CiphertextInterface {
+
+    private final long latencyMicros, jitterMicros;
+    private final String plainText;
+
+    /**
+     * Creates the stub.
+     *
+     * @param latencyMicros Fixed delay of every call
+     * @param jitterMicros Maximum random delay added to every call
+     * @param length Length of the text, rounded up to a multiple of 8
+     */
+    public StubCiphertextProvider(long latencyMicros, long jitterMicros, int length) {
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        StringBuilder text = new StringBuilder();
+        String words = "THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG ";
+        int rounded = Math.max(8, (length + 7) / 8 * 8);
+        while (text.length() < rounded) {
+            text.append(words);
+        }
+        text.setLength(rounded);
+        plainText = text.toString();
+    }
+
+    /**
+     * @return The text every cipher deciphers to
+     */
+    public String getPlainText() {
+        return plainText;
+    }
+
+    @Override
+    public String get(String uid, int key) throws RemoteException {
+        long delay = latencyMicros;
+        if (jitterMicros > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitterMicros + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted", e);
+            }
+        }
+        return encipher(plainText, key);
+    }
+
+    /**
+     * Enciphers a text so that resolveCipher(encipher(text, key), key) gives
+     * back the text. The length must be a multiple of 8.
+     *
+     * @param text Text to encipher
+     * @param key Key
+     * @return The cipher
+     */
+    public static String encipher(String text, int key) {
+        int shift = key % 8;
+        int subst = key % 26;
+        char[] chars = text.toCharArray();
+        char[] chunk = new char[8];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < chars.length; i += 8) {
+                //Undo the left shift of the chunk, then undo the substraction
+                for (int j = 0; j < 8; j++) {
+                    chunk[(j + shift) % 8] = chars[i + j];
+                }
+                for (int j = 0; j < 8; j++) {
+                    char c = chunk[j];
+                    if (c >= 'A' && c <= 'Z') {
+                        c = (char) ('A' + (c - 'A' + subst) % 26);
+                    }
+                    chars[i + j] = c;
+                }
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,158 @@
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashed timer wheel that expires IDs after a delay. Time is cut into ticks,
+ * and the wheel has one slot per tick of a revolution. A timer goes in the
+ * slot of the tick it expires on, so scheduling costs the same whatever the
+ * number of timers, and every tick only looks at the timers of one slot.
+ * <p>
+ * Any thread can schedule. The timers are handed over through a queue and
+ * only the thread of the wheel touches the slots, so no lock is taken. A
+ * timer can not be cancelled: the callback is expected to do nothing for an
+ * ID that is already gone. Expiry is at most one tick late.
+ */
+public class TimerWheel {
+
+    private final long tickNanos;
+    private final Entry[] slots;
+    private final int mask;
+    private final IntConsumer onExpire;
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long startTime = System.nanoTime();
+    private Thread thread;
+    //Only used by the thread of the wheel
+    private long currentTick;
+
+    /**
+     * Creates the wheel.
+     *
+     * @param tickMillis Length of a tick, the precision of the timers
+     * @param slots Number of slots, rounded up to a power of two
+     * @param onExpire Called with the ID of every expired timer, on the
+     * thread of the wheel
+     */
+    public TimerWheel(long tickMillis, int slots, IntConsumer onExpire) {
+        if (tickMillis < 1 || slots < 1) {
+            throw new IllegalArgumentException("Tick and slots must be positive");
+        }
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        this.tickNanos = tickMillis * 1000000L;
+        this.slots = new Entry[size];
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Starts the thread that turns the wheel.
+     */
+    public void start() {
+        thread = new Thread(this::run, "timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the wheel. The timers left never expire.
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Schedules the expiry of an ID.
+     *
+     * @param id ID given to the callback
+     * @param delayMillis Time until it expires
+     */
+    public void schedule(int id, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + delayMillis * 1000000L;
+        //Rounded up, so a timer never expires early
+        added.add(new Entry(id, (deadline + tickNanos - 1) / tickNanos));
+        pending.incrementAndGet();
+    }
+
+    /**
+     * @return Number of timers that did not expire yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long sleep = (currentTick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            currentTick++;
+            transferAdded();
+            expire();
+        }
+    }
+
+    /**
+     * Puts the newly scheduled timers in their slots.
+     */
+    private void transferAdded() {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            //A timer already due goes in the slot expired right now
+            long tick = Math.max(entry.deadlineTick, currentTick);
+            int slot = (int) (tick & mask);
+            entry.deadlineTick = tick;
+            entry.next = slots[slot];
+            slots[slot] = entry;
+        }
+    }
+
+    /**
+     * Expires the timers of a slot that are due in this revolution and keeps
+     * the others.
+     */
+    private void expire() {
+        int slot = (int) (currentTick & mask);
+        Entry previous = null;
+        for (Entry entry = slots[slot]; entry != null; entry = entry.next) {
+            if (entry.deadlineTick > currentTick) {
+                previous = entry;
+                continue;
+            }
+            if (previous == null) {
+                slots[slot] = entry.next;
+            } else {
+                previous.next = entry.next;
+            }
+            pending.decrementAndGet();
+            try {
+                onExpire.accept(entry.id);
+            } catch (RuntimeException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final int id;
+        long deadlineTick;
+        Entry next;
+
+        Entry(int id, long deadlineTick) {
+            this.id = id;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous client for the soton CiphertextProvider.
+ * <p>
+ * Calls run on their own bounded pool, so a slow provider can only fill this
+ * pool and its queue. When both are full new calls fail at once. Every call
+ * has a deadline, and after a number of failures in a row the circuit opens:
+ * calls fail without reaching the provider until the cooldown is over and one
+ * trial call succeeds.
+ */
+public class UpstreamClient {
+
+    private final CiphertextInterface provider;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final int failureThreshold;
+    private final long cooldownNanos;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    //0 while the circuit is closed, otherwise the time it may be tried again
+    private volatile long openUntil;
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * Creates the client.
+     *
+     * @param provider The provider to call
+     * @param threads Maximum number of calls in flight
+     * @param queueSize Maximum number of calls waiting for a thread
+     * @param timeoutMillis Deadline of a call
+     * @param failureThreshold Failures in a row that open the circuit
+     * @param cooldownMillis How long the circuit stays open
+     */
+    public UpstreamClient(CiphertextInterface provider, int threads, int queueSize, long timeoutMillis,
+            int failureThreshold, long cooldownMillis) {
+        this.provider = provider;
+        this.timeoutMillis = timeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.cooldownNanos = cooldownMillis * 1000000L;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "upstream");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Requests a cipher without blocking.
+     *
+     * @param uid User name
+     * @param key Key
+     * @return The cipher, or a RemoteException or TimeoutException on failure
+     */
+    public CompletableFuture<String> get(String uid, int key) {
+        if (!allowCall()) {
+            shortCircuited.incrementAndGet();
+            return CompletableFuture.failedFuture(new RemoteException("Upstream circuit is open"));
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(provider.get(uid, key));
+                } catch (RemoteException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            trialRunning.set(false);
+            return CompletableFuture.failedFuture(new RemoteException("Upstream queue is full"));
+        }
+        return result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((cipher, error) -> {
+            if (error == null) {
+                onSuccess();
+            } else {
+                if (error instanceof TimeoutException) {
+                    timeouts.incrementAndGet();
+                }
+                onFailure();
+            }
+        });
+    }
+
+    private boolean allowCall() {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (System.nanoTime() - until < 0) {
+            return false;
+        }
+        //Half open: let exactly one call through to test the provider
+        return trialRunning.compareAndSet(false, true);
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        openUntil = 0;
+        trialRunning.set(false);
+    }
+
+    private void onFailure() {
+        failures.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || trialRunning.get()) {
+            openUntil = System.nanoTime() + cooldownNanos;
+            trialRunning.set(false);
+        }
+    }
+
+    /**
+     * Waits for an upstream result.
+     *
+     * @param cipher Pending cipher
+     * @return The cipher
+     * @throws RemoteException If the call failed or missed its deadline
+     */
+    public static String await(CompletableFuture<String> cipher) throws RemoteException {
+        try {
+            return cipher.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the cipher", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Upstream call failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the threads of this client.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Number of calls running right now
+     */
+    public int getInFlight() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return Number of calls waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Number of calls refused because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Number of calls that missed their deadline
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return Number of failed calls, timeouts included
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return Number of calls refused because the circuit was open
+     */
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+
+    /**
+     * @return True while the circuit is open
+     */
+    public boolean isCircuitOpen() {
+        return openUntil != 0;
+    }
+}
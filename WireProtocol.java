@@ -0,0 +1,670 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary version of the socket exchange, called v2, and the helpers both
+ * sides use to speak it.
+ * <p>
+ * The server still opens with the legacy greeting "x g p ID", followed by the
+ * token " v2" when it speaks the binary version. Legacy clients only read the
+ * first four numbers, so they go on as before: they send their name and y with
+ * writeUTF and get the cipher back with writeUTF. A v2 client answers with the
+ * two bytes 0xFFFF instead, a writeUTF length no real name has, followed by
+ * binary frames:
+ * <blockquote><pre>
+ * frame = type (1 byte), payload length (varint), payload
+ * HELLO = y (4 bytes, big endian), name (UTF-8)        client to server
+ * DATA  = part of the cipher (UTF-8)                    server to client
+ * END   = empty, the cipher is complete                 server to client
+ * </pre></blockquote>
+ * The varint is the usual base 128 one, seven bits per byte with the lowest
+ * bits first. The cipher is sent as DATA frames of at most
+ * {@link #MAX_CHUNK} bytes, so it is not limited to 64 KB and never has to be
+ * encoded in one piece.
+ * <p>
+ * A server that also adds the token " sessions" keeps a connection open for
+ * many ciphers. The client sends a SESSION frame in place of the HELLO, then
+ * as many requests as it likes without waiting for the answers:
+ * <blockquote><pre>
+ * SESSION  = y (4 bytes), name (UTF-8)                          client to server
+ * READY    = requests before a rekey (varint), idle timeout in ms (varint)
+ * REQUEST  = request ID (varint)                                client to server
+ * RESPONSE = request ID (varint), cipher (UTF-8)
+ * ERROR    = request ID (varint), reason (UTF-8)
+ * REKEY    = new y (4 bytes)                                    client to server
+ * REKEYED  = new x (4 bytes)
+ * </pre></blockquote>
+ * Answers come in the order the ciphers arrive from upstream, not the order of
+ * the requests. Every request uses the key of the last REKEYED before it, and
+ * after the number of requests given in READY the server answers ERROR until
+ * the client rekeys.
+ * <p>
+ * A server that adds the token " mux" also lets many users share one
+ * connection. The client sends a MULTIPLEX frame in place of the HELLO, which gives
+ * back the user of the greeting, then opens a stream for every user it serves:
+ * <blockquote><pre>
+ * MULTIPLEX = empty                                            client to server
+ * OPEN     = stream (varint), name (UTF-8)                     client to server
+ * OPENED   = stream (varint), x, g, p (4 bytes each)
+ * KEY      = stream (varint), y, lock (4 bytes each)           client to server
+ * FETCH    = stream (varint), lock (4 bytes)                   client to server
+ * RESPONSE = stream (varint), cipher (UTF-8)
+ * ERROR    = stream (varint), reason (UTF-8)
+ * CLOSE    = stream (varint)                                   client to server
+ * </pre></blockquote>
+ * See {@link MultiplexedSession}.
+ */
+public final class WireProtocol {
+
+    /**
+     * Token added to the greeting by servers that speak the binary version.
+     */
+    public static final String VERSION = "v2";
+
+    /**
+     * Token added to the greeting by servers that keep sessions open.
+     */
+    public static final String SESSIONS = "sessions";
+
+    /**
+     * Token added to the greeting by servers that multiplex users.
+     */
+    public static final String MUX = "mux";
+
+    /**
+     * Flags given by {@link #parseGreeting(byte[], int)}.
+     */
+    public static final int BINARY = 1, PIPELINING = 2, MULTIPLEXING = 4;
+
+    /**
+     * First two bytes sent by a binary client, in place of a writeUTF length.
+     */
+    public static final int MARKER = 0xFFFF;
+
+    /**
+     * Frame types.
+     */
+    public static final byte HELLO = 1, DATA = 2, END = 3;
+
+    /**
+     * Frame types of a session.
+     */
+    public static final byte SESSION = 4, READY = 5, REQUEST = 6, RESPONSE = 7, ERROR = 8, REKEY = 9, REKEYED = 10;
+
+    /**
+     * Frame types of a multiplexed connection.
+     */
+    public static final byte MULTIPLEX = 11, OPEN = 12, OPENED = 13, KEY = 14, FETCH = 15, CLOSE = 16;
+
+    /**
+     * Largest payload of a DATA frame.
+     */
+    public static final int MAX_CHUNK = 16384;
+
+    /**
+     * Largest payload of a frame the server accepts.
+     */
+    public static final int MAX_FRAME = 65536;
+
+    //Type byte and the varint of a MAX_CHUNK length
+    private static final int HEADER = 4;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Reads the greeting of the server without making any String.
+     *
+     * @param greeting Modified UTF-8 bytes of the greeting
+     * @param length Number of bytes
+     * @return x, g, p, ID and the flags BINARY, PIPELINING and MULTIPLEXING
+     * the server gave
+     * @throws IOException If the greeting does not start with four numbers
+     */
+    public static int[] parseGreeting(byte[] greeting, int length) throws IOException {
+        int[] values = new int[5];
+        int i = 0;
+        for (int field = 0; field < 4; field++) {
+            boolean negative = i < length && greeting[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int start = i;
+            long value = 0;
+            while (i < length && greeting[i] >= '0' && greeting[i] <= '9') {
+                value = value * 10 + greeting[i++] - '0';
+                if (value > 2147483648L) {
+                    throw new IOException("Number too large in greeting");
+                }
+            }
+            if (i == start || (i < length && greeting[i] != ' ')) {
+                throw new IOException("Bad greeting");
+            }
+            values[field] = (int) (negative ? -value : value);
+            i++;
+        }
+        //The rest are version tokens
+        while (i < length) {
+            int start = i;
+            while (i < length && greeting[i] != ' ') {
+                i++;
+            }
+            if (isToken(greeting, start, i, VERSION)) {
+                values[4] |= BINARY;
+            } else if (isToken(greeting, start, i, SESSIONS)) {
+                values[4] |= PIPELINING;
+            } else if (isToken(greeting, start, i, MUX)) {
+                values[4] |= MULTIPLEXING;
+            }
+            i++;
+        }
+        return values;
+    }
+
+    private static boolean isToken(byte[] greeting, int start, int end, String token) {
+        if (end - start != token.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (greeting[i] != token.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the marker and the HELLO frame of a binary client.
+     *
+     * @param out Stream to the server
+     * @param name Name of the user
+     * @param y Y value of the user
+     * @throws IOException If the stream fails
+     */
+    public static void writeHello(DataOutputStream out, String name, int y) throws IOException {
+        //Built in one piece so an unbuffered stream sends it in one write
+        ByteBuffer frame = helloFrame(HELLO, name, y);
+        out.write(frame.array(), 0, frame.limit());
+    }
+
+    /**
+     * Builds the marker and a HELLO or SESSION frame.
+     *
+     * @param type HELLO or SESSION
+     * @param name Name of the user
+     * @param y Y value of the user
+     * @return The bytes, ready to be written
+     */
+    static ByteBuffer helloFrame(byte type, String name, int y) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(2 + 1 + 5 + 4 + bytes.length);
+        frame.putShort((short) MARKER);
+        frame.put(type);
+        putVarint(frame, bytes.length + 4);
+        frame.putInt(y);
+        frame.put(bytes);
+        return frame.flip();
+    }
+
+    /**
+     * Builds a frame holding a request ID or stream and a text, an OPEN, a
+     * RESPONSE or an ERROR.
+     *
+     * @param type Type of the frame
+     * @param id Request ID or stream
+     * @param text Name, cipher or reason
+     * @return The frame, ready to be written
+     */
+    static ByteBuffer textFrame(byte type, int id, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = varintSize(id) + bytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintSize(length) + length);
+        frame.put(type);
+        putVarint(frame, length);
+        putVarint(frame, id);
+        frame.put(bytes);
+        return frame.flip();
+    }
+
+    /**
+     * Builds a frame holding varints, a REQUEST, a READY, a CLOSE or a MULTIPLEX.
+     *
+     * @param type Type of the frame
+     * @param values Non negative values
+     * @return The frame, ready to be written
+     */
+    static ByteBuffer varintFrame(byte type, int... values) {
+        int length = 0;
+        for (int value : values) {
+            length += varintSize(value);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintSize(length) + length);
+        frame.put(type);
+        putVarint(frame, length);
+        for (int value : values) {
+            putVarint(frame, value);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Builds a frame holding a stream and 4 byte numbers, an OPENED, a KEY or
+     * a FETCH.
+     *
+     * @param type Type of the frame
+     * @param stream Stream
+     * @param values The numbers
+     * @return The frame, ready to be written
+     */
+    static ByteBuffer streamFrame(byte type, int stream, int... values) {
+        int length = varintSize(stream) + 4 * values.length;
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintSize(length) + length);
+        frame.put(type);
+        putVarint(frame, length);
+        putVarint(frame, stream);
+        for (int value : values) {
+            frame.putInt(value);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Builds a frame holding one 4 byte number, a REKEY or a REKEYED.
+     *
+     * @param type Type of the frame
+     * @param value The number
+     * @return The frame, ready to be written
+     */
+    static ByteBuffer intFrame(byte type, int value) {
+        ByteBuffer frame = ByteBuffer.allocate(6);
+        frame.put(type);
+        frame.put((byte) 4);
+        frame.putInt(value);
+        return frame.flip();
+    }
+
+    /**
+     * Reads a whole frame.
+     *
+     * @param in Stream to read from
+     * @param maxLength Largest payload accepted
+     * @return The frame
+     * @throws IOException If the stream fails or the frame is too long
+     */
+    static Frame readFrame(DataInputStream in, int maxLength) throws IOException {
+        return readFrame(in, in.readByte(), maxLength);
+    }
+
+    /**
+     * Reads the rest of a frame whose type was already read.
+     *
+     * @param in Stream to read from
+     * @param type Type of the frame
+     * @param maxLength Largest payload accepted
+     * @return The frame
+     * @throws IOException If the stream fails or the frame is too long
+     */
+    static Frame readFrame(DataInputStream in, byte type, int maxLength) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Frame too long");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Takes a whole frame out of a buffer.
+     *
+     * @param buffer Buffer in write mode, the frame starts at offset
+     * @param offset Start of the frame
+     * @param maxLength Largest payload accepted
+     * @return The frame, or null if it did not fully arrive yet
+     * @throws IOException If the frame is too long
+     */
+    static Frame decodeFrame(ByteBuffer buffer, int offset, int maxLength) throws IOException {
+        int end = buffer.position();
+        if (end <= offset) {
+            return null;
+        }
+        byte type = buffer.get(offset);
+        int length = 0;
+        int i = offset + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (i >= end) {
+                return null;
+            }
+            byte next = buffer.get(i++);
+            length |= (next & 0x7F) << shift;
+            if (next >= 0) {
+                break;
+            }
+            if (shift >= 21) {
+                throw new IOException("Frame too long");
+            }
+        }
+        if (length > maxLength) {
+            throw new IOException("Frame too long");
+        }
+        if (end - i < length) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(i, payload);
+        buffer.flip();
+        buffer.position(i + length);
+        buffer.compact();
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Reads a HELLO frame, the marker being already read.
+     *
+     * @param in Stream from the client
+     * @return The name and y of the user
+     * @throws IOException If the stream fails or the frame is not a HELLO
+     */
+    public static Hello readHello(DataInputStream in) throws IOException {
+        Frame frame = readFrame(in, MAX_FRAME);
+        if (frame.type != HELLO) {
+            throw new IOException("Bad hello frame");
+        }
+        return frame.getHello();
+    }
+
+    /**
+     * Sends a cipher as DATA frames and an END frame.
+     *
+     * @param out Stream to the client
+     * @param cipher The cipher
+     * @throws IOException If the stream fails
+     */
+    public static void writeCipher(DataOutputStream out, String cipher) throws IOException {
+        CipherWriter frames = new CipherWriter(cipher);
+        ByteBuffer frame = ByteBuffer.allocate(CipherWriter.FRAME_SIZE);
+        while (frames.next(frame)) {
+            out.write(frame.array(), frame.position(), frame.remaining());
+        }
+    }
+
+    /**
+     * Reads a whole cipher sent as frames.
+     *
+     * @param in Stream from the server
+     * @return The cipher
+     * @throws IOException If the stream fails or a frame is bad
+     */
+    public static String readCipher(DataInputStream in) throws IOException {
+        return new String(new CipherInputStream(in).readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a varint.
+     *
+     * @param out Stream to write to
+     * @param value Non negative value
+     * @throws IOException If the stream fails
+     */
+    public static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads a varint.
+     *
+     * @param in Stream to read from
+     * @return The value
+     * @throws IOException If the stream fails or the varint is longer than an
+     * int
+     */
+    public static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int next = in.readUnsignedByte();
+            value |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a varint from a buffer.
+     *
+     * @param buffer Buffer to read from
+     * @return The value
+     * @throws IOException If the buffer ends or the varint is longer than an
+     * int
+     */
+    static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32 && buffer.hasRemaining(); shift += 7) {
+            byte next = buffer.get();
+            value |= (next & 0x7F) << shift;
+            if (next >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * One frame, with its type and its payload.
+     */
+    static final class Frame {
+
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * @return The payload as numbers and text
+         */
+        ByteBuffer getPayload() {
+            return ByteBuffer.wrap(payload);
+        }
+
+        /**
+         * Reads the payload of a HELLO or SESSION frame.
+         *
+         * @return The name and y
+         * @throws IOException If the payload is too short
+         */
+        Hello getHello() throws IOException {
+            if (payload.length < 4) {
+                throw new IOException("Bad hello frame");
+            }
+            int y = ByteBuffer.wrap(payload).getInt();
+            return new Hello(new String(payload, 4, payload.length - 4, StandardCharsets.UTF_8), y);
+        }
+
+        /**
+         * Reads the text after the request ID of a RESPONSE or ERROR frame.
+         *
+         * @param from Start of the text
+         * @return The text
+         */
+        String getText(int from) {
+            return new String(payload, from, payload.length - from, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Name and y sent by a binary client.
+     */
+    public static final class Hello {
+
+        public final String name;
+        public final int y;
+
+        Hello(String name, int y) {
+            this.name = name;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Cuts a cipher into frames one at a time, encoding only the part that
+     * goes into the next frame.
+     */
+    static final class CipherWriter {
+
+        /**
+         * Size of a buffer that holds any frame.
+         */
+        static final int FRAME_SIZE = HEADER + MAX_CHUNK;
+
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean flushed, ended;
+
+        CipherWriter(String cipher) {
+            chars = CharBuffer.wrap(cipher);
+        }
+
+        /**
+         * Puts the next frame in the buffer, ready to be read.
+         *
+         * @param frame Buffer of at least FRAME_SIZE bytes
+         * @return False if the END frame was already given
+         */
+        boolean next(ByteBuffer frame) {
+            if (ended) {
+                return false;
+            }
+            frame.clear();
+            frame.position(HEADER);
+            frame.limit(FRAME_SIZE);
+            if (chars.hasRemaining()) {
+                encoder.encode(chars, frame, true);
+            }
+            if (!chars.hasRemaining() && !flushed && frame.hasRemaining()) {
+                flushed = encoder.flush(frame).isUnderflow();
+            }
+            int length = frame.position() - HEADER;
+            byte type = DATA;
+            if (length == 0) {
+                type = END;
+                ended = true;
+            }
+            //The header is written just before the payload, so it starts after any unused byte
+            int start = HEADER - 1 - varintSize(length);
+            frame.put(start, type);
+            int i = start + 1;
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                frame.put(i++, (byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            frame.put(i, (byte) value);
+            frame.limit(frame.position());
+            frame.position(start);
+            return true;
+        }
+    }
+
+    /**
+     * The payload of the DATA frames of one cipher, up to its END frame. It
+     * can be wrapped in a {@link DecipherInputStream} for ASCII ciphers, or in
+     * an InputStreamReader and a {@link DecipherReader}, to decipher the
+     * cipher while it arrives. Closing it leaves the socket open.
+     */
+    public static final class CipherInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private int left;
+        private boolean ended;
+
+        /**
+         * Creates the stream.
+         *
+         * @param in Stream from the server, positioned on the first frame
+         */
+        public CipherInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextFrame() throws IOException {
+            while (left == 0 && !ended) {
+                int type = in.readUnsignedByte();
+                int length = readVarint(in);
+                if (type == END && length == 0) {
+                    ended = true;
+                } else if (type == DATA && length <= MAX_CHUNK) {
+                    left = length;
+                } else {
+                    throw new IOException("Bad cipher frame");
+                }
+            }
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextFrame()) {
+                return -1;
+            }
+            left--;
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextFrame()) {
+                return -1;
+            }
+            int read = in.read(b, off, Math.min(len, left));
+            if (read < 0) {
+                throw new EOFException("Cipher cut short");
+            }
+            left -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(left, in.available());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Deciphers single byte encoded messages with the incubating Vector API, as
+ * many chunks of 8 at a time as the widest vector of the machine holds.
+ * <p>
+ * The substraction becomes a masked substract on the lanes holding a letter,
+ * then a masked add of 26 on the lanes that went below 'A'. The shift of
+ * every chunk is one lane shuffle, the same for every vector, that rotates
+ * each group of 8 lanes. The chunks left after the last whole vector are done
+ * by the scalar loop of {@link Decipher}.
+ * <p>
+ * This class needs the jdk.incubator.vector module, so it lives apart from
+ * the other sources and is compiled and run with it:
+ * <blockquote><pre>
+ * javac --add-modules jdk.incubator.vector *.java vector/*.java
+ * java --add-modules jdk.incubator.vector MyClient
+ * </pre></blockquote>
+ * Without it {@link Decipher} can not load this class and stays scalar.
+ */
+final class VectorDecipher implements Decipher.ByteEngine {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    //One shuffle for every rotation, lane i takes the lane (i + rotation) & 7 of its group of 8
+    private static final VectorShuffle<Byte>[] SHUFFLES = shuffles();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static VectorShuffle<Byte>[] shuffles() {
+        VectorShuffle<Byte>[] shuffles = new VectorShuffle[8];
+        for (int rotation = 0; rotation < 8; rotation++) {
+            int r = rotation;
+            shuffles[rotation] = VectorShuffle.fromOp(SPECIES, i -> (i & ~7) | ((i + r) & 7));
+        }
+        return shuffles;
+    }
+
+    /**
+     * Creates the engine.
+     *
+     * @throws UnsupportedOperationException If the vectors are too narrow to
+     * be worth it
+     */
+    VectorDecipher() {
+        if (SPECIES.length() < 16) {
+            throw new UnsupportedOperationException("Vectors of " + SPECIES.length() + " bytes");
+        }
+    }
+
+    @Override
+    public int resolve(byte[] buffer, int offset, int length, CompiledKey key) {
+        if (length % 8 != 0 || length < 8) {
+            return 0;
+        }
+        byte subtraction = (byte) key.getSubtraction();
+        VectorShuffle<Byte> shuffle = SHUFFLES[key.getRotation()];
+        int end = offset + length;
+        int i = offset;
+        for (; i <= end - SPECIES.length(); i += SPECIES.length()) {
+            ByteVector chunk = ByteVector.fromArray(SPECIES, buffer, i);
+            //Bytes above 127 are negative, so they are never letters
+            VectorMask<Byte> letters = chunk.compare(VectorOperators.GE, (byte) 'A')
+                    .and(chunk.compare(VectorOperators.LE, (byte) 'Z'));
+            ByteVector shifted = chunk.sub(subtraction, letters);
+            VectorMask<Byte> wrapped = shifted.compare(VectorOperators.LT, (byte) 'A').and(letters);
+            shifted.add((byte) 26, wrapped).rearrange(shuffle).intoArray(buffer, i);
+        }
+        if (i < end) {
+            Decipher.resolveScalar(buffer, i, end - i, key);
+        }
+        return length;
+    }
+}